@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import javax.security.auth.Subject;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Set of server credential shards used to accept SPNEGO security contexts.
+ * <p/>
+ * <p>
+ * A GSSContext is not thread-safe and the JDK Kerberos acceptor does not
+ * guarantee that a single server credential can be used concurrently. Instead of
+ * serializing every handshake of the JVM, each shard owns its own server credential
+ * (acquired from the same pre-authenticated Subject) and its own lock. Handshakes are
+ * spread over the shards so that up to <code>concurrency</code> tickets may be
+ * decrypted at the same time.
+ * </p>
+ * <p/>
+ * <p>
+ * With a concurrency of 1, the single shard uses the lock given at construction time
+ * which gives the same behaviour as before: one handshake at a time.
+ * </p>
+ */
+final class SpnegoAcceptor {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * The shards of server credentials.
+   */
+  private final transient Shard[] shards;
+
+  /**
+   * Round-robin index used to spread the handshakes over the shards.
+   */
+  private final transient AtomicInteger next = new AtomicInteger(0);
+
+  /**
+   * Creates the acceptor shards.
+   * @param credential the server credential already acquired, used by the first shard
+   * @param subject account server uses for pre-authentication
+   * @param concurrency the number of shards (at least 1)
+   * @param defaultLock the lock of the first shard when there is only one shard
+   * @throws java.security.PrivilegedActionException
+   */
+  SpnegoAcceptor(final GSSCredential credential, final Subject subject, final int concurrency,
+      final Lock defaultLock) throws PrivilegedActionException {
+
+    this(credential, new PrivilegedExceptionAction<GSSCredential>() {
+      @Override
+      public GSSCredential run() throws PrivilegedActionException {
+        return SpnegoProvider.getServerCredential(subject);
+      }
+    }, concurrency, defaultLock);
+  }
+
+  /**
+   * Creates the acceptor shards, the credentials of the other shards being
+   * acquired by the given action. If one of them cannot be acquired, those
+   * already acquired are disposed.
+   * @param credential the server credential already acquired, used by the first shard
+   * @param acquirer acquires the server credential of another shard
+   * @param concurrency the number of shards (at least 1)
+   * @param defaultLock the lock of the first shard when there is only one shard
+   * @throws java.security.PrivilegedActionException
+   */
+  SpnegoAcceptor(final GSSCredential credential,
+      final PrivilegedExceptionAction<GSSCredential> acquirer, final int concurrency,
+      final Lock defaultLock) throws PrivilegedActionException {
+
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Acceptor concurrency must be at least 1: " + concurrency);
+    }
+
+    this.shards = new Shard[concurrency];
+    if (concurrency == 1) {
+      this.shards[0] = new Shard(credential, defaultLock, false);
+    } else {
+      this.shards[0] = new Shard(credential, new ReentrantLock(), false);
+      boolean acquired = false;
+      try {
+        for (int i = 1; i < concurrency; i++) {
+          this.shards[i] = new Shard(acquirer.run(), new ReentrantLock(), true);
+        }
+        acquired = true;
+      } catch (PrivilegedActionException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new PrivilegedActionException(e);
+      } finally {
+        if (!acquired) {
+          dispose();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of shards.
+   * @return the number of shards
+   */
+  int getConcurrency() {
+    return this.shards.length;
+  }
+
+  /**
+   * Acquires the lock of a shard and returns it. A free shard is preferred; if all of
+   * them are busy, the caller waits on the next shard in the round-robin order.
+   * <p/>
+   * <p>The caller MUST call {@link Shard#unlock()} when done.</p>
+   * @return a locked shard
+   */
+  Shard lock() {
+    final int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.shards.length;
+    for (int i = 0; i < this.shards.length; i++) {
+      final Shard shard = this.shards[(start + i) % this.shards.length];
+      if (shard.lock.tryLock()) {
+        return shard;
+      }
+    }
+    final Shard shard = this.shards[start];
+    shard.lock.lock();
+    return shard;
+  }
+
+  /**
+   * Disposes the credentials acquired by this acceptor. The credential given at
+   * construction time is left to its owner.
+   */
+  void dispose() {
+    for (Shard shard : this.shards) {
+      if (null != shard && shard.owned) {
+        try {
+          shard.credential.dispose();
+        } catch (GSSException e) {
+          LOGGER.log(Level.WARNING, "Dispose failed.", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A server credential and the lock that guards its use.
+   */
+  static final class Shard {
+
+    private final transient GSSCredential credential;
+
+    private final transient Lock lock;
+
+    private final transient boolean owned;
+
+    private Shard(final GSSCredential credential, final Lock lock, final boolean owned) {
+      this.credential = credential;
+      this.lock = lock;
+      this.owned = owned;
+    }
+
+    /**
+     * Returns the server credential of this shard.
+     * @return server credential
+     */
+    GSSCredential getCredential() {
+      return this.credential;
+    }
+
+    /**
+     * Acquires again the lock of this shard (for instance to dispose a context
+     * created with its credential).
+     */
+    void relock() {
+      this.lock.lock();
+    }
+
+    /**
+     * Releases the lock of this shard.
+     */
+    void unlock() {
+      this.lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSContext;
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stateless authentication cookie issued after a successful authentication.
+ * <p/>
+ * <p>
+ * The cookie carries the principal name (realm included) and an expiry time, both
+ * signed with an HMAC-SHA256 key shared by all the nodes of the cluster. A request
+ * presenting a valid cookie is authenticated by checking the signature only: there is
+ * neither GSS call nor server-side state.
+ * </p>
+ * <p/>
+ * <p>
+ * To rotate the key, set the new key as the current one and the old key as the
+ * previous one: cookies signed with the previous key are still accepted until they
+ * expire, new cookies are signed with the current key.
+ * </p>
+ * <p/>
+ * <p>
+ * The expiry of a cookie never exceeds the lifetime of the Kerberos ticket the client
+ * authenticated with. A principal authenticated from a cookie has no delegated
+ * credential.
+ * </p>
+ * @see SpnegoHttpFilter.Constants#COOKIE_KEY
+ */
+final class SpnegoAuthCookie {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * Name of the authentication cookie.
+   */
+  static final String NAME = "SPNEGO_AUTH";
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private static final String CHARSET = "UTF-8";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Key used to sign and to verify the cookies.
+   */
+  private final transient SecretKeySpec key;
+
+  /**
+   * Key only used to verify the cookies (null if none).
+   */
+  private final transient SecretKeySpec previousKey;
+
+  /**
+   * Maximum time-to-live of a cookie in seconds.
+   */
+  private final transient long ttl;
+
+  /**
+   * @param key the secret key to sign the cookies with
+   * @param previousKey the previous secret key, or null
+   * @param ttlSeconds the maximum time-to-live of a cookie in seconds
+   */
+  SpnegoAuthCookie(final String key, final String previousKey, final long ttlSeconds) {
+    if (null == key || key.isEmpty()) {
+      throw new IllegalArgumentException("Authentication cookie key is required.");
+    }
+    if (ttlSeconds <= 0) {
+      throw new IllegalArgumentException("Authentication cookie TTL must be positive: " +
+          ttlSeconds);
+    }
+
+    this.key = new SecretKeySpec(getBytes(key), ALGORITHM);
+    this.previousKey = (null == previousKey || previousKey.isEmpty()) ? null :
+        new SecretKeySpec(getBytes(previousKey), ALGORITHM);
+    this.ttl = ttlSeconds;
+  }
+
+  /**
+   * Adds a signed authentication cookie for the given principal to the response.
+   * @param req servlet request
+   * @param resp servlet response
+   * @param principal the authenticated principal
+   */
+  void issue(final HttpServletRequest req, final HttpServletResponse resp,
+      final SpnegoPrincipal principal) {
+
+    long maxAge = this.ttl;
+    final int lifetime = principal.getLifetime();
+    if (lifetime != GSSContext.INDEFINITE_LIFETIME && lifetime < maxAge) {
+      maxAge = lifetime;
+    }
+    if (maxAge <= 0) {
+      LOGGER.finer("ticket about to expire, no authentication cookie.");
+      return;
+    }
+
+    final long expiry = System.currentTimeMillis() + maxAge * 1000L;
+    final String payload = toHex(getBytes(principal.getName() + '\n' + expiry));
+
+    final Cookie cookie = new Cookie(NAME, payload + '.' + toHex(sign(this.key, payload)));
+    cookie.setMaxAge((int) maxAge);
+    cookie.setPath(req.getContextPath().isEmpty() ? "/" : req.getContextPath());
+    cookie.setSecure(req.isSecure());
+    cookie.setHttpOnly(true);
+    resp.addCookie(cookie);
+  }
+
+  /**
+   * Returns the principal carried by a valid authentication cookie of the request, or
+   * null if there is no such cookie, if its signature is wrong or if it has expired.
+   * @param req servlet request
+   * @return the principal or null
+   */
+  SpnegoPrincipal verify(final HttpServletRequest req) {
+    final Cookie[] cookies = req.getCookies();
+    if (null == cookies) {
+      return null;
+    }
+
+    for (Cookie cookie : cookies) {
+      if (NAME.equals(cookie.getName())) {
+        final SpnegoPrincipal principal = verify(cookie.getValue());
+        if (null != principal) {
+          return principal;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private SpnegoPrincipal verify(final String value) {
+    final int dot = (null == value) ? -1 : value.indexOf('.');
+    if (dot <= 0) {
+      return null;
+    }
+
+    final String payload = value.substring(0, dot);
+    final byte[] mac = fromHex(value.substring(dot + 1));
+    if (null == mac || !(MessageDigest.isEqual(mac, sign(this.key, payload)) ||
+        (null != this.previousKey && MessageDigest.isEqual(mac, sign(this.previousKey, payload))))) {
+      LOGGER.fine("authentication cookie with a wrong signature.");
+      return null;
+    }
+
+    final String content = getString(fromHex(payload));
+    final int sep = content.lastIndexOf('\n');
+    final long expiry = Long.parseLong(content.substring(sep + 1));
+    if (expiry < System.currentTimeMillis()) {
+      LOGGER.finer("authentication cookie expired.");
+      return null;
+    }
+
+    return new SpnegoPrincipal(content.substring(0, sep), KerberosPrincipal.KRB_NT_PRINCIPAL);
+  }
+
+  private static byte[] sign(final SecretKeySpec secret, final String payload) {
+    try {
+      final Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(secret);
+      return mac.doFinal(getBytes(payload));
+    } catch (GeneralSecurityException e) {
+      LOGGER.log(Level.SEVERE, "Unable to sign the authentication cookie.", e);
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] getBytes(final String value) {
+    try {
+      return value.getBytes(CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String getString(final byte[] value) {
+    try {
+      return new String(value, CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    final char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+    }
+    return new String(chars);
+  }
+
+  private static byte[] fromHex(final String hex) {
+    if (hex.length() % 2 != 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      final int high = Character.digit(hex.charAt(i * 2), 16);
+      final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+}
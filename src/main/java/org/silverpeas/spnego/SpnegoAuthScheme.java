@@ -20,6 +20,8 @@ package org.silverpeas.spnego;
 
 import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
 
+import java.nio.ByteBuffer;
+
 /**
  * Example schemes are "Negotiate" and "Basic".
  * <p/>
@@ -45,6 +47,11 @@ final class SpnegoAuthScheme {
    */
   private final transient String token;
 
+  /**
+   * Decoded token, memoized on first access.
+   */
+  private transient volatile byte[] decoded = null;
+
   /**
    * true if Basic Auth scheme.
    */
@@ -115,6 +122,48 @@ final class SpnegoAuthScheme {
    * @return copy of token
    */
   public byte[] getToken() {
-    return (null == this.token) ? EMPTY_BYTE_ARRAY : Base64.decode(this.token);
+    return getTokenArray().clone();
+  }
+
+  /**
+   * Returns a read-only view of the decoded token.
+   * @return read-only view of the token
+   */
+  public ByteBuffer getTokenBuffer() {
+    return ByteBuffer.wrap(getTokenArray()).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the length of the decoded token, computed from the encoded
+   * token without decoding it.
+   * @return length of the token, 0 if none
+   */
+  public int getTokenLength() {
+    final byte[] bytes = this.decoded;
+    if (null != bytes) {
+      return bytes.length;
+    }
+    if (null == this.token || this.token.length() < 2) {
+      return 0;
+    }
+
+    final int length = this.token.length();
+    final int pad =
+        (this.token.charAt(length - 2) == '=') ? 2 : (this.token.charAt(length - 1) == '=') ? 1 : 0;
+    return length * 3 / 4 - pad;
+  }
+
+  /**
+   * Returns the decoded token, decoded once. The array is shared, not
+   * copied: it must not be modified.
+   * @return the token
+   */
+  byte[] getTokenArray() {
+    byte[] bytes = this.decoded;
+    if (null == bytes) {
+      bytes = (null == this.token) ? EMPTY_BYTE_ARRAY : Base64.decode(this.token);
+      this.decoded = bytes;
+    }
+    return bytes;
   }
 }
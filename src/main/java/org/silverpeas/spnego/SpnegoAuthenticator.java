@@ -93,7 +93,7 @@ public final class SpnegoAuthenticator {
   private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
 
   /**
-   * GSSContext is not thread-safe.
+   * GSSContext is not thread-safe. Lock used when the acceptor has only one shard.
    */
   private static final Lock LOCK = new ReentrantLock();
 
@@ -152,6 +152,21 @@ public final class SpnegoAuthenticator {
    */
   private final transient KerberosPrincipal serverPrincipal;
 
+  /**
+   * Basic Auth credentials already verified against the KDC (null if disabled).
+   */
+  private final transient SpnegoBasicAuthCache basicCache;
+
+  /**
+   * Replay cache of the accepted tokens (null if left to the JDK).
+   */
+  private final transient SpnegoReplayCache replayCache;
+
+  /**
+   * Shards of server credentials used to accept the security contexts.
+   */
+  private final transient SpnegoAcceptor acceptor;
+
   /**
    * Create an authenticator for SPNEGO and/or BASIC authentication.
    * @param config servlet filter initialization parameters
@@ -172,6 +187,20 @@ public final class SpnegoAuthenticator {
     this.promptIfNtlm = config.downgradeNtlm();
     this.allowDelegation = config.isDelegationAllowed();
 
+    if (config.isBasicCacheEnabled()) {
+      this.basicCache =
+          new SpnegoBasicAuthCache(config.getBasicCacheTtl(), config.getBasicCacheSize());
+    } else {
+      this.basicCache = null;
+    }
+
+    if (config.isReplayCacheInMemory()) {
+      this.replayCache =
+          new SpnegoReplayCache(config.getReplayCacheSkew(), config.getReplayCacheSize());
+    } else {
+      this.replayCache = null;
+    }
+
     if (config.useKeyTab()) {
       this.loginContext = new LoginContext(config.getServerLoginModule());
     } else {
@@ -186,6 +215,9 @@ public final class SpnegoAuthenticator {
     this.serverCredentials = SpnegoProvider.getServerCredential(this.loginContext.getSubject());
 
     this.serverPrincipal = new KerberosPrincipal(this.serverCredentials.getName().toString());
+
+    this.acceptor = new SpnegoAcceptor(this.serverCredentials, this.loginContext.getSubject(),
+        config.getAcceptorConcurrency(), SpnegoAuthenticator.LOCK);
   }
 
   /**
@@ -234,9 +266,7 @@ public final class SpnegoAuthenticator {
 
       @Override
       public String getInitParameter(final String param) {
-        if (null == map.get(param)) {
-          throw new NullPointerException("Config missing param value for: " + param);
-        }
+        // as in web.xml, an absent param is null: the required ones are checked by the config
         return map.get(param);
       }
 
@@ -328,6 +358,12 @@ public final class SpnegoAuthenticator {
    * </p>
    */
   public void dispose() {
+    if (null != this.basicCache) {
+      LOGGER.info("Basic Auth cache: " + this.basicCache);
+    }
+    if (null != this.acceptor) {
+      this.acceptor.dispose();
+    }
     if (null != this.serverCredentials) {
       try {
         this.serverCredentials.dispose();
@@ -356,7 +392,7 @@ public final class SpnegoAuthenticator {
   private SpnegoPrincipal doBasicAuth(final SpnegoAuthScheme scheme,
       final SpnegoHttpServletResponse resp) throws IOException {
 
-    final byte[] data = scheme.getToken();
+    final byte[] data = scheme.getTokenArray();
 
     if (0 == data.length) {
       LOGGER.finer("Basic Auth data was NULL.");
@@ -385,16 +421,26 @@ public final class SpnegoAuthenticator {
         throw new LoginException("Username is required.");
       }
 
-      final LoginContext cntxt = new LoginContext(this.clientModuleName, handler);
+      // validate username/password in memory if already verified
+      if (null == this.basicCache || !this.basicCache.isVerified(username, password)) {
+        final LoginContext cntxt = new LoginContext(this.clientModuleName, handler);
 
-      // validate username/password by login/logout
-      cntxt.login();
-      cntxt.logout();
+        // validate username/password by login/logout
+        cntxt.login();
+        cntxt.logout();
+
+        if (null != this.basicCache) {
+          this.basicCache.put(username, password);
+        }
+      }
 
       principal = new SpnegoPrincipal(username + '@' + this.serverPrincipal.getRealm(),
           KerberosPrincipal.KRB_NT_PRINCIPAL);
 
     } catch (LoginException le) {
+      if (null != this.basicCache) {
+        this.basicCache.remove(username);
+      }
       LOGGER.info(
           le.getMessage() + ": Login failed. username=" + username + "; password.hashCode()=" +
               password.hashCode());
@@ -435,25 +481,31 @@ public final class SpnegoAuthenticator {
       final SpnegoHttpServletResponse resp) throws GSSException, IOException {
 
     final String principal;
-    final byte[] gss = scheme.getToken();
+    final int lifetime;
+    final byte[] gss = scheme.getTokenArray();
 
     if (0 == gss.length) {
       LOGGER.finer("GSS data was NULL.");
       return null;
     }
 
+    // a replayed token is rejected before any work of the acceptor
+    if (null != this.replayCache && !this.replayCache.add(gss)) {
+      throw new GSSException(GSSException.DUPLICATE_TOKEN);
+    }
+
     GSSContext context = null;
     GSSCredential delegCred = null;
+    final SpnegoAcceptor.Shard shard = this.acceptor.lock();
 
     try {
       byte[] token = null;
 
-      SpnegoAuthenticator.LOCK.lock();
       try {
-        context = SpnegoAuthenticator.MANAGER.createContext(this.serverCredentials);
+        context = SpnegoAuthenticator.MANAGER.createContext(shard.getCredential());
         token = context.acceptSecContext(gss, 0, gss.length);
       } finally {
-        SpnegoAuthenticator.LOCK.unlock();
+        shard.unlock();
       }
 
       if (null == token) {
@@ -471,6 +523,7 @@ public final class SpnegoAuthenticator {
       }
 
       principal = context.getSrcName().toString();
+      lifetime = context.getLifetime();
 
       if (this.allowDelegation && context.getCredDelegState()) {
         delegCred = context.getDelegCred();
@@ -478,16 +531,17 @@ public final class SpnegoAuthenticator {
 
     } finally {
       if (null != context) {
-        SpnegoAuthenticator.LOCK.lock();
+        shard.relock();
         try {
           context.dispose();
         } finally {
-          SpnegoAuthenticator.LOCK.unlock();
+          shard.unlock();
         }
       }
     }
 
-    return new SpnegoPrincipal(principal, KerberosPrincipal.KRB_NT_PRINCIPAL, delegCred);
+    return new SpnegoPrincipal(principal, KerberosPrincipal.KRB_NT_PRINCIPAL, delegCred,
+        lifetime);
   }
 
   /**
@@ -500,6 +554,32 @@ public final class SpnegoAuthenticator {
     return req.getLocalAddr().equals(req.getRemoteAddr());
   }
 
+  /**
+   * Returns the number of Basic Auth requests validated in memory, that is
+   * the number of KDC calls avoided.
+   * @return number of Basic Auth cache hits or 0 if the cache is disabled
+   */
+  public long getBasicCacheHitCount() {
+    return (null == this.basicCache) ? 0 : this.basicCache.getHitCount();
+  }
+
+  /**
+   * Returns the number of Basic Auth requests that had to be validated
+   * against the KDC while the cache is enabled.
+   * @return number of Basic Auth cache misses or 0 if the cache is disabled
+   */
+  public long getBasicCacheMissCount() {
+    return (null == this.basicCache) ? 0 : this.basicCache.getMissCount();
+  }
+
+  /**
+   * Returns the ratio of Basic Auth requests validated in memory.
+   * @return hit ratio between 0 and 1
+   */
+  public double getBasicCacheHitRatio() {
+    return (null == this.basicCache) ? 0d : this.basicCache.getHitRatio();
+  }
+
   /**
    * Returns true if typed runtime exceptions have to be thrown.
    * @return true if typed runtime exceptions have to be thrown
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of the Basic Auth credentials verified against the KDC.
+ * <p/>
+ * <p>
+ * Passwords are never kept: an entry holds a random salt and a PBKDF2 hash of the
+ * password, keyed by username. A repeated Basic request whose password matches the hash
+ * of a non expired entry is validated in memory instead of doing a login/logout round
+ * trip to the KDC. The least recently used entries are evicted when the cache is full.
+ * </p>
+ * @see SpnegoHttpFilter.Constants#BASIC_CACHE_TTL
+ */
+final class SpnegoBasicAuthCache {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  private static final int ITERATIONS = 10000;
+
+  static final int SALT_LENGTH = 16;
+
+  private static final int HASH_LENGTH = 160;
+
+  private final transient SecureRandom random = new SecureRandom();
+
+  /**
+   * Verified credentials in access order.
+   */
+  private final transient Map<String, Verified> entries;
+
+  /**
+   * Time-to-live of an entry in milliseconds.
+   */
+  private final transient long ttl;
+
+  private final transient AtomicLong hits = new AtomicLong(0);
+
+  private final transient AtomicLong misses = new AtomicLong(0);
+
+  /**
+   * @param ttlSeconds time-to-live of a verified credential in seconds
+   * @param maxSize maximum number of verified credentials
+   */
+  SpnegoBasicAuthCache(final long ttlSeconds, final int maxSize) {
+    if (ttlSeconds <= 0 || maxSize <= 0) {
+      throw new IllegalArgumentException(
+          "Basic Auth cache TTL and size must be positive: " + ttlSeconds + ", " + maxSize);
+    }
+
+    this.ttl = ttlSeconds * 1000L;
+    this.entries = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+      private static final long serialVersionUID = 6150420468936251749L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Verified> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns true if the given credential has already been verified and has not expired.
+   * @param username client username
+   * @param password client password
+   * @return true if the credential is valid
+   */
+  boolean isVerified(final String username, final String password) {
+    final Verified entry;
+    synchronized (this.entries) {
+      entry = this.entries.get(username);
+    }
+
+    if (null == entry || password.isEmpty() || entry.expiry < System.currentTimeMillis() ||
+        !MessageDigest.isEqual(entry.hash, hash(password, entry.salt))) {
+      this.misses.incrementAndGet();
+      return false;
+    }
+
+    this.hits.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Records a credential just verified against the KDC.
+   * @param username client username
+   * @param password client password
+   */
+  void put(final String username, final String password) {
+    if (password.isEmpty()) {
+      return;
+    }
+
+    final byte[] salt = new byte[SALT_LENGTH];
+    this.random.nextBytes(salt);
+
+    final Verified entry =
+        new Verified(salt, hash(password, salt), System.currentTimeMillis() + this.ttl);
+    synchronized (this.entries) {
+      this.entries.put(username, entry);
+    }
+  }
+
+  /**
+   * Forgets the credential of the given user, for instance after a failed login.
+   * @param username client username
+   */
+  void remove(final String username) {
+    synchronized (this.entries) {
+      this.entries.remove(username);
+    }
+  }
+
+  /**
+   * Returns the number of credentials validated in memory, that is the number of
+   * KDC round trips avoided.
+   * @return number of cache hits
+   */
+  long getHitCount() {
+    return this.hits.get();
+  }
+
+  /**
+   * Returns the number of credentials that had to be verified against the KDC.
+   * @return number of cache misses
+   */
+  long getMissCount() {
+    return this.misses.get();
+  }
+
+  /**
+   * Returns the ratio of credentials validated in memory.
+   * @return hit ratio between 0 and 1
+   */
+  double getHitRatio() {
+    final long hit = this.hits.get();
+    final long total = hit + this.misses.get();
+    return (total == 0) ? 0d : (double) hit / total;
+  }
+
+  /**
+   * Returns the PBKDF2 hash of the given password with the given salt.
+   */
+  static byte[] hash(final String password, final byte[] salt) {
+    try {
+      final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_LENGTH);
+      try {
+        return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      } finally {
+        spec.clearPassword();
+      }
+    } catch (GeneralSecurityException e) {
+      LOGGER.log(Level.SEVERE, "Unable to hash the password.", e);
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + this.hits.get() + "; misses=" + this.misses.get() + "; hitRatio=" +
+        getHitRatio();
+  }
+
+  /**
+   * A verified credential.
+   */
+  private static final class Verified {
+
+    private final byte[] salt;
+
+    private final byte[] hash;
+
+    private final long expiry;
+
+    private Verified(final byte[] salt, final byte[] hash, final long expiry) {
+      this.salt = salt;
+      this.hash = hash;
+      this.expiry = expiry;
+    }
+  }
+}
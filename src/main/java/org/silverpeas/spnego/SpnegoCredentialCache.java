@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.security.MessageDigest;
+import java.security.PrivilegedActionException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of the client credentials, shared by the connections that log in
+ * with the same login module and, for the username/password login, the same identity.
+ * <p/>
+ * <p>
+ * Connections borrow a {@link Lease} instead of logging in again and release it when
+ * done. A credential is renewed by a new login when its remaining lifetime falls under
+ * {@link #RENEWAL_THRESHOLD} seconds. The least recently used credentials are evicted
+ * when there are more than {@link #MAX_SIZE} of them. A renewed or evicted credential
+ * is disposed, and its LoginContext logged out, once the last lease on it is released.
+ * </p>
+ * <p/>
+ * <p>
+ * Passwords are never kept: the entry of a username/password login holds a salted
+ * PBKDF2 hash of the password, as {@link SpnegoBasicAuthCache} does, so that a different
+ * password triggers a new login. The entry is replaced only once that login succeeds: a
+ * wrong password does not evict the credential of the right one.
+ * </p>
+ */
+final class SpnegoCredentialCache {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * Maximum number of cached credentials.
+   */
+  static final int MAX_SIZE = 64;
+
+  /**
+   * Remaining lifetime in seconds under which a credential is renewed.
+   */
+  static final int RENEWAL_THRESHOLD = 300;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Cached credentials in access order.
+   */
+  private static final Map<String, Identity> ENTRIES =
+      new LinkedHashMap<String, Identity>(16, 0.75f, true) {
+        private static final long serialVersionUID = -1593851394127357125L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Identity> eldest) {
+          if (size() > MAX_SIZE) {
+            eldest.getValue().retire();
+            return true;
+          }
+          return false;
+        }
+      };
+
+  private SpnegoCredentialCache() {
+    // default private
+  }
+
+  /**
+   * Borrows the credential of the given login module, where the LoginContext relies on
+   * a keytab or on tgtsessionkey.
+   * @param loginModuleName name of the login module
+   * @return a lease on the credential
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  static Lease borrow(final String loginModuleName)
+      throws LoginException, PrivilegedActionException {
+    return borrow(loginModuleName, null, null);
+  }
+
+  /**
+   * Borrows the credential of the given identity.
+   * @param loginModuleName name of the login module
+   * @param username client username, or null to rely on a keytab or on tgtsessionkey
+   * @param password client password
+   * @return a lease on the credential
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  static Lease borrow(final String loginModuleName, final String username,
+      final String password) throws LoginException, PrivilegedActionException {
+
+    final String key = loginModuleName + '\n' + ((null == username) ? "" : username);
+
+    final Identity entry;
+    synchronized (ENTRIES) {
+      entry = ENTRIES.get(key);
+    }
+    // the password is hashed outside of the lock: PBKDF2 is slow on purpose
+    if (null != entry && entry.matches(password)) {
+      synchronized (ENTRIES) {
+        if (entry == ENTRIES.get(key) && !entry.isExpiring()) {
+          return entry.lease();
+        }
+      }
+    }
+
+    // log in outside of the lock: it may take a KDC round trip, and it fails
+    // with a wrong password before the cached entry is touched
+    final Identity created = Identity.login(loginModuleName, username, password);
+
+    synchronized (ENTRIES) {
+      final Identity current = ENTRIES.get(key);
+      if (null != current && current != entry && !current.isExpiring() &&
+          current.matches(password)) {
+        // another thread has logged in meanwhile
+        created.retire();
+        return current.lease();
+      }
+      if (null != current) {
+        ENTRIES.remove(key);
+        current.retire();
+      }
+      ENTRIES.put(key, created);
+      return created.lease();
+    }
+  }
+
+  /**
+   * Evicts all the cached credentials. They are disposed once their leases are released.
+   */
+  static void clear() {
+    synchronized (ENTRIES) {
+      for (Identity entry : ENTRIES.values()) {
+        entry.retire();
+      }
+      ENTRIES.clear();
+    }
+  }
+
+  /**
+   * A borrowed credential. Release it when done; it must not be used afterwards.
+   */
+  static final class Lease {
+
+    private final transient Identity entry;
+
+    private transient boolean released = false;
+
+    private Lease(final Identity entry) {
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the borrowed credential.
+     * @return client credential
+     */
+    GSSCredential getCredential() {
+      return this.entry.credential;
+    }
+
+    /**
+     * Returns true if the remaining lifetime of the borrowed credential is under
+     * {@link #RENEWAL_THRESHOLD} seconds.
+     * @return true if the credential should be renewed
+     */
+    boolean isExpiring() {
+      return this.entry.isExpiring();
+    }
+
+    /**
+     * Borrows the same credential again, even if it has been renewed or evicted since.
+     * @return a new lease, to be released on its own
+     */
+    Lease share() {
+      synchronized (ENTRIES) {
+        return this.entry.lease();
+      }
+    }
+
+    /**
+     * Gives the credential back to the cache. Calling it more than once has no effect.
+     */
+    void release() {
+      synchronized (ENTRIES) {
+        if (!this.released) {
+          this.released = true;
+          this.entry.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * A logged in identity. The reference count and the retired flag are guarded by the
+   * lock of the cache.
+   */
+  private static final class Identity {
+
+    private final LoginContext loginContext;
+
+    private final GSSCredential credential;
+
+    private final byte[] salt;
+
+    private final byte[] digest;
+
+    private int references = 0;
+
+    private boolean retired = false;
+
+    private Identity(final LoginContext loginContext, final GSSCredential credential,
+        final String password) {
+      this.loginContext = loginContext;
+      this.credential = credential;
+      if (null == password) {
+        this.salt = null;
+        this.digest = null;
+      } else {
+        this.salt = new byte[SpnegoBasicAuthCache.SALT_LENGTH];
+        RANDOM.nextBytes(this.salt);
+        this.digest = SpnegoBasicAuthCache.hash(password, this.salt);
+      }
+    }
+
+    private static Identity login(final String loginModuleName, final String username,
+        final String password) throws LoginException, PrivilegedActionException {
+
+      final LoginContext loginContext;
+      if (null == username) {
+        loginContext = new LoginContext(loginModuleName);
+      } else {
+        final CallbackHandler handler =
+            SpnegoProvider.getUsernamePasswordHandler(username, password);
+        loginContext = new LoginContext(loginModuleName, handler);
+      }
+      loginContext.login();
+
+      try {
+        return new Identity(loginContext,
+            SpnegoProvider.getClientCredential(loginContext.getSubject()), password);
+      } catch (PrivilegedActionException e) {
+        loginContext.logout();
+        throw e;
+      }
+    }
+
+    private boolean matches(final String password) {
+      if (null == password || null == this.digest) {
+        return null == password && null == this.digest;
+      }
+      return MessageDigest.isEqual(this.digest, SpnegoBasicAuthCache.hash(password, this.salt));
+    }
+
+    private boolean isExpiring() {
+      try {
+        final int remaining = this.credential.getRemainingLifetime();
+        return remaining != GSSCredential.INDEFINITE_LIFETIME && remaining < RENEWAL_THRESHOLD;
+      } catch (GSSException e) {
+        LOGGER.log(Level.FINE, "credential lifetime unavailable.", e);
+        return true;
+      }
+    }
+
+    private Lease lease() {
+      this.references++;
+      return new Lease(this);
+    }
+
+    private void release() {
+      this.references--;
+      if (this.retired && this.references == 0) {
+        dispose();
+      }
+    }
+
+    private void retire() {
+      this.retired = true;
+      if (this.references == 0) {
+        dispose();
+      }
+    }
+
+    private void dispose() {
+      try {
+        this.credential.dispose();
+      } catch (GSSException e) {
+        LOGGER.log(Level.WARNING, "call to dispose credential failed.", e);
+      }
+      try {
+        this.loginContext.logout();
+      } catch (LoginException e) {
+        LOGGER.log(Level.WARNING, "call to logout context failed.", e);
+      }
+    }
+  }
+}
@@ -66,6 +66,10 @@ final class SpnegoFilterConfig { // NOPMD
   private static final String MISSING_PROPERTY =
       "Servlet Filter init param(s) in web.xml missing: ";
 
+  private static final String REPLAY_CACHE_JDK = "jdk";
+
+  private static final String REPLAY_CACHE_MEMORY = "memory";
+
   private static transient SpnegoFilterConfig instance = null;
 
   /**
@@ -87,6 +91,56 @@ final class SpnegoFilterConfig { // NOPMD
    */
   private transient boolean throwTypedRuntimeException = false;
 
+  /**
+   * number of server credential shards used to accept security contexts concurrently.
+   */
+  private transient int acceptorConcurrency = 1;
+
+  /**
+   * time-to-live in seconds of the principal bound to the HTTP session (0 if disabled).
+   */
+  private transient long sessionCacheTtl = 0;
+
+  /**
+   * secret key signing the authentication cookie (null if disabled).
+   */
+  private transient String cookieKey = null;
+
+  /**
+   * previous secret key, still accepted to verify the authentication cookie.
+   */
+  private transient String cookiePreviousKey = null;
+
+  /**
+   * maximum time-to-live in seconds of the authentication cookie.
+   */
+  private transient long cookieTtl = 3600;
+
+  /**
+   * time-to-live in seconds of the verified Basic Auth credentials (0 if disabled).
+   */
+  private transient long basicCacheTtl = 0;
+
+  /**
+   * maximum number of verified Basic Auth credentials.
+   */
+  private transient int basicCacheSize = 1000;
+
+  /**
+   * replay cache used when accepting security contexts (jdk or memory).
+   */
+  private transient String replayCache = REPLAY_CACHE_JDK;
+
+  /**
+   * clock skew window in seconds of the in-memory replay cache.
+   */
+  private transient int replayCacheSkew = 300;
+
+  /**
+   * maximum number of tokens recorded by the in-memory replay cache.
+   */
+  private transient int replayCacheSize = 100000;
+
   /**
    * true if Basic auth should be offered.
    */
@@ -204,6 +258,35 @@ final class SpnegoFilterConfig { // NOPMD
       this.throwTypedRuntimeException =
           Boolean.parseBoolean(config.getInitParameter(Constants.THROW_TYPED_RUNTIME_EXCEPTION));
     }
+
+    // determine how many security contexts may be accepted concurrently
+    setAcceptorConcurrency(config.getInitParameter(Constants.ACCEPTOR_CONCURRENCY));
+
+    // determine if the authenticated principal is bound to the HTTP session
+    if (null != config.getInitParameter(Constants.SESSION_CACHE_TTL)) {
+      this.sessionCacheTtl =
+          Long.parseLong(config.getInitParameter(Constants.SESSION_CACHE_TTL).trim());
+    }
+
+    // determine if the verified Basic Auth credentials are cached
+    if (null != config.getInitParameter(Constants.BASIC_CACHE_TTL)) {
+      this.basicCacheTtl =
+          Long.parseLong(config.getInitParameter(Constants.BASIC_CACHE_TTL).trim());
+    }
+    if (null != config.getInitParameter(Constants.BASIC_CACHE_SIZE)) {
+      this.basicCacheSize =
+          Integer.parseInt(config.getInitParameter(Constants.BASIC_CACHE_SIZE).trim());
+    }
+
+    // determine which replay cache detects the replayed tokens
+    setReplayCache(config.getInitParameter(Constants.REPLAY_CACHE),
+        config.getInitParameter(Constants.REPLAY_CACHE_SKEW),
+        config.getInitParameter(Constants.REPLAY_CACHE_SIZE));
+
+    // determine if a signed authentication cookie is issued
+    setCookieSupport(config.getInitParameter(Constants.COOKIE_KEY),
+        config.getInitParameter(Constants.COOKIE_PREVIOUS_KEY),
+        config.getInitParameter(Constants.COOKIE_TTL));
   }
 
   private void doClientModule(final String moduleName) {
@@ -296,6 +379,54 @@ final class SpnegoFilterConfig { // NOPMD
     return this.promptNtlm;
   }
 
+  /**
+   * Returns the maximum number of verified Basic Auth credentials kept in memory.
+   * @return size of the Basic Auth cache
+   */
+  int getBasicCacheSize() {
+    return this.basicCacheSize;
+  }
+
+  /**
+   * Returns the time-to-live in seconds of the verified Basic Auth credentials.
+   * @return the TTL in seconds or 0 if the credentials are not cached
+   */
+  long getBasicCacheTtl() {
+    return this.basicCacheTtl;
+  }
+
+  /**
+   * Returns the secret key signing the authentication cookie.
+   * @return the key or null if no authentication cookie is issued
+   */
+  String getCookieKey() {
+    return this.cookieKey;
+  }
+
+  /**
+   * Returns the previous secret key, only used to verify the authentication cookie.
+   * @return the previous key or null
+   */
+  String getCookiePreviousKey() {
+    return this.cookiePreviousKey;
+  }
+
+  /**
+   * Returns the maximum time-to-live in seconds of the authentication cookie.
+   * @return TTL of the authentication cookie
+   */
+  long getCookieTtl() {
+    return this.cookieTtl;
+  }
+
+  /**
+   * Returns the number of security contexts that may be accepted concurrently.
+   * @return the number of server credential shards (1 by default)
+   */
+  int getAcceptorConcurrency() {
+    return this.acceptorConcurrency;
+  }
+
   /**
    * Return the value defined in the servlet's init params
    * in the web.xml file.
@@ -321,6 +452,30 @@ final class SpnegoFilterConfig { // NOPMD
     return this.username;
   }
 
+  /**
+   * Returns the clock skew window in seconds of the in-memory replay cache.
+   * @return clock skew in seconds
+   */
+  int getReplayCacheSkew() {
+    return this.replayCacheSkew;
+  }
+
+  /**
+   * Returns the maximum number of tokens recorded by the in-memory replay cache.
+   * @return size of the replay cache
+   */
+  int getReplayCacheSize() {
+    return this.replayCacheSize;
+  }
+
+  /**
+   * Returns the time-to-live in seconds of the principal bound to the HTTP session.
+   * @return the TTL in seconds or 0 if the principal must not be bound to the session
+   */
+  long getSessionCacheTtl() {
+    return this.sessionCacheTtl;
+  }
+
   /**
    * Return the value defined in the servlet's init params
    * in the web.xml file.
@@ -382,6 +537,40 @@ final class SpnegoFilterConfig { // NOPMD
     return this.allowLocalhost;
   }
 
+  /**
+   * Returns true if the Basic Auth credentials verified against the KDC are cached.
+   * @return true if the Basic Auth cache is enabled
+   */
+  boolean isBasicCacheEnabled() {
+    return this.allowBasic && this.basicCacheTtl > 0;
+  }
+
+  /**
+   * Returns true if a signed authentication cookie is issued after a successful
+   * authentication.
+   * @return true if the authentication cookie is enabled
+   */
+  boolean isCookieEnabled() {
+    return null != this.cookieKey;
+  }
+
+  /**
+   * Returns true if the replayed tokens are detected by the in-memory replay
+   * cache of this library instead of the one of the JDK.
+   * @return true if the in-memory replay cache is used
+   */
+  boolean isReplayCacheInMemory() {
+    return REPLAY_CACHE_MEMORY.equals(this.replayCache);
+  }
+
+  /**
+   * Returns true if the authenticated principal should be bound to the HTTP session.
+   * @return true if the session cache is enabled
+   */
+  boolean isSessionCacheEnabled() {
+    return this.sessionCacheTtl > 0;
+  }
+
   /**
    * Returns true if SSL/TLS is required.
    * @return true if SSL/TLS is required
@@ -449,6 +638,74 @@ final class SpnegoFilterConfig { // NOPMD
     return true;
   }
 
+  /**
+   * Specify the number of server credential shards used to accept security
+   * contexts. A value of 0 means one shard per available processor.
+   * @param concurrency number of shards or null for the default (1)
+   */
+  private void setAcceptorConcurrency(final String concurrency) {
+    if (null != concurrency) {
+      final int value = Integer.parseInt(concurrency.trim());
+      if (value < 0) {
+        throw new IllegalArgumentException(
+            Constants.ACCEPTOR_CONCURRENCY + " must be positive: " + concurrency);
+      }
+      this.acceptorConcurrency =
+          (value == 0) ? Runtime.getRuntime().availableProcessors() : value;
+    }
+  }
+
+  /**
+   * Specify the replay cache used when accepting security contexts. The JDK
+   * replay cache is left as configured for the JVM.
+   * @param cache "jdk" or "memory", null for the default (jdk)
+   * @param skew clock skew window in seconds or null for the default
+   * @param size maximum number of recorded tokens or null for the default
+   */
+  private void setReplayCache(final String cache, final String skew, final String size) {
+    if (null == cache || cache.trim().isEmpty()) {
+      return;
+    }
+
+    final String value = cache.trim().toLowerCase();
+    if (!REPLAY_CACHE_JDK.equals(value) && !REPLAY_CACHE_MEMORY.equals(value)) {
+      throw new IllegalArgumentException(
+          Constants.REPLAY_CACHE + " must be " + REPLAY_CACHE_JDK + " or " + REPLAY_CACHE_MEMORY +
+              ": " + cache);
+    }
+    this.replayCache = value;
+
+    if (null != skew) {
+      this.replayCacheSkew = Integer.parseInt(skew.trim());
+    }
+    if (null != size) {
+      this.replayCacheSize = Integer.parseInt(size.trim());
+    }
+  }
+
+  /**
+   * Specify the keys and the time-to-live of the signed authentication cookie.
+   * @param key secret key or null if no cookie is issued
+   * @param previousKey previous secret key or null
+   * @param ttl maximum time-to-live in seconds or null for the default
+   */
+  private void setCookieSupport(final String key, final String previousKey, final String ttl) {
+    if (null == key || key.isEmpty()) {
+      if (null != previousKey && !previousKey.isEmpty()) {
+        throw new IllegalArgumentException(
+            SpnegoFilterConfig.MISSING_PROPERTY + Constants.COOKIE_KEY);
+      }
+      return;
+    }
+
+    this.cookieKey = key;
+    this.cookiePreviousKey = previousKey;
+
+    if (null != ttl) {
+      this.cookieTtl = Long.parseLong(ttl.trim());
+    }
+  }
+
   /**
    * Specify if Basic authentication is allowed and if un-secure/non-ssl
    * Basic should be allowed.
@@ -569,7 +826,10 @@ final class SpnegoFilterConfig { // NOPMD
 
     buff.append("allowBasic=" + this.allowBasic + "; allowUnsecure=" + this.allowUnsecure +
         "; canUseKeyTab=" + this.canUseKeyTab + "; clientLoginModule=" + this.clientLoginModule +
-        "; serverLoginModule=" + this.serverLoginModule);
+        "; serverLoginModule=" + this.serverLoginModule + "; acceptorConcurrency=" +
+        this.acceptorConcurrency + "; sessionCacheTtl=" + this.sessionCacheTtl +
+        "; basicCacheTtl=" + this.basicCacheTtl + "; replayCache=" + this.replayCache +
+        "; cookieEnabled=" + isCookieEnabled() + "; cookieTtl=" + this.cookieTtl);
 
     return buff.toString();
   }
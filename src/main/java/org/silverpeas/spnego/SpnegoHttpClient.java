@@ -0,0 +1,849 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.PrivilegedActionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe and reusable client of SPNEGO protected HTTP servers.
+ * <p/>
+ * <p>
+ * Unlike {@link SpnegoHttpURLConnection}, which is single-use, a client is created once
+ * per service and shared between threads: the credential is acquired once (borrowed
+ * from the process-wide credential cache when built from a login module, and renewed
+ * by a new login when it is about to expire) and each call is described by an
+ * immutable {@link SpnegoHttpRequest}.
+ * </p>
+ * <p/>
+ * <p>
+ * Example usage:
+ * <pre>
+ *     final SpnegoHttpClient client = new SpnegoHttpClient("spnego-client");
+ *     ...
+ *     final SpnegoHttpURLConnection spnego =
+ *         client.execute(new SpnegoHttpRequest(new URL("http://medusa:8080/index.jsp")));
+ *     try {
+ *         System.out.println(spnego.getResponseCode());
+ *     } finally {
+ *         spnego.disconnect();
+ *     }
+ *     ...
+ *     client.close();
+ * </pre>
+ * </p>
+ * <p/>
+ * <p>
+ * The setters configure the client for all the subsequent calls and should be called
+ * before the client is shared.
+ * </p>
+ * @see SpnegoHttpURLConnection
+ */
+public final class SpnegoHttpClient {
+
+  /**
+   * Aborts the background calls that exceed their deadline.
+   */
+  private static final ScheduledThreadPoolExecutor WATCHDOG =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "spnego-client-watchdog");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Login module and username of the shared credential, to renew it (null if
+   * the credential is given by the caller).
+   */
+  private final transient String loginModuleName;
+
+  private final transient String username;
+
+  /**
+   * Password of the shared credential, to renew it, cleared on close (null if
+   * none).
+   */
+  private transient char[] password;
+
+  /**
+   * Lease on the shared credential, renewed when it is about to expire (null if the
+   * credential is given by the caller).
+   */
+  private transient SpnegoCredentialCache.Lease lease;
+
+  /**
+   * Client's credentials given by the caller (null if shared).
+   */
+  private final transient GSSCredential credential;
+
+  /**
+   * Proxy used to connect to the servers (null for a direct connection).
+   */
+  private volatile Proxy proxy = null;
+
+  /**
+   * Flag to keep the TCP connections alive between the calls.
+   */
+  private volatile boolean keepAlive = true;
+
+  /**
+   * Maximum number of legs to establish a GSSContext.
+   */
+  private volatile int maxContextLegs = 3;
+
+  /**
+   * Maximum number of redirects to follow.
+   */
+  private volatile int maxRedirects = 0;
+
+  /**
+   * Flag to authenticate before sending the bodies.
+   */
+  private volatile boolean preflight = false;
+
+  /**
+   * Maximum number of concurrent background calls to a same host (0 for no limit).
+   */
+  private volatile int maxCallsPerHost = 0;
+
+  /**
+   * Permits of the background calls, by host.
+   */
+  private final transient ConcurrentMap<String, Semaphore> hostPermits =
+      new ConcurrentHashMap<String, Semaphore>();
+
+  /**
+   * Cookie store shared by the calls (null if cookies are ignored).
+   */
+  private volatile CookieHandler cookies = null;
+
+  /**
+   * Generator of the tokens in the background (null if disabled).
+   */
+  private volatile SpnegoTokenPrefetcher prefetcher = null;
+
+  /**
+   * Number of threads of the default executor of the background calls.
+   */
+  private volatile int threads = 8;
+
+  /**
+   * Executor of the asynchronous calls (lazily created if not given).
+   */
+  private transient ExecutorService executor = null;
+
+  /**
+   * Flag to shut the executor down on close.
+   */
+  private transient boolean ownsExecutor = false;
+
+  /**
+   * Creates a client where the LoginContext relies on a keytab
+   * file being specified by "java.security.auth.login.config" or
+   * where LoginContext relies on tgtsessionkey.
+   * @param loginModuleName
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  public SpnegoHttpClient(final String loginModuleName)
+      throws LoginException, PrivilegedActionException {
+
+    this(loginModuleName, null, null);
+  }
+
+  /**
+   * Creates a client where the LoginContext does not require a keytab
+   * file. However, the "java.security.auth.login.config" property must still
+   * be set prior to instantiating this object. The password is kept by the
+   * client, in a char array cleared by {@link #close()}, to log in again when
+   * the credential is about to expire.
+   * @param loginModuleName
+   * @param username
+   * @param password
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  public SpnegoHttpClient(final String loginModuleName, final String username,
+      final String password) throws LoginException, PrivilegedActionException {
+
+    this.loginModuleName = loginModuleName;
+    this.username = username;
+    this.password = (null == password) ? null : password.toCharArray();
+    this.lease = SpnegoCredentialCache.borrow(loginModuleName, username, password);
+    this.credential = null;
+  }
+
+  /**
+   * Creates a client where the GSSCredential is specified by the parameter. The
+   * credential is not disposed by the client.
+   * @param creds credentials to use
+   */
+  public SpnegoHttpClient(final GSSCredential creds) {
+    if (null == creds) {
+      throw new IllegalArgumentException("creds parameter is null");
+    }
+    this.loginModuleName = null;
+    this.username = null;
+    this.password = null;
+    this.lease = null;
+    this.credential = creds;
+  }
+
+  /**
+   * Sends the given request and returns the connection once the response
+   * headers are received. Always call disconnect() on the returned
+   * connection when done using it.
+   * @param request the request to send
+   * @return a connected SpnegoHttpURLConnection
+   * @throws org.ietf.jgss.GSSException
+   * @throws java.security.PrivilegedActionException
+   * @throws java.io.IOException
+   */
+  public SpnegoHttpURLConnection execute(final SpnegoHttpRequest request)
+      throws GSSException, PrivilegedActionException, IOException {
+
+    final SpnegoHttpURLConnection conn = open(request, 0);
+    boolean connected = false;
+    try {
+      send(conn, request);
+      connected = true;
+    } finally {
+      if (!connected) {
+        conn.disconnect();
+      }
+    }
+    return conn;
+  }
+
+  /**
+   * Returns a new connection set up for the given request, with the given
+   * connect and read timeout.
+   */
+  private SpnegoHttpURLConnection open(final SpnegoHttpRequest request, final int timeout)
+      throws GSSException, PrivilegedActionException {
+
+    final SpnegoHttpURLConnection conn;
+    if (null == this.loginModuleName) {
+      conn = new SpnegoHttpURLConnection(this.credential, false);
+    } else {
+      conn = new SpnegoHttpURLConnection(borrow());
+    }
+    conn.setConnectTimeout(timeout);
+    conn.setReadTimeout(timeout);
+    conn.setRequestMethod(request.getMethod());
+    conn.requestCredDeleg(request.isCredDeleg());
+    conn.setKeepAlive(this.keepAlive);
+    conn.setMaxContextLegs(this.maxContextLegs);
+    conn.setMaxRedirects(this.maxRedirects);
+    conn.setPreflight(this.preflight);
+    conn.setCookieHandler(this.cookies);
+    for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+      for (String value : header.getValue()) {
+        conn.addRequestProperty(header.getKey(), value);
+      }
+    }
+    return conn;
+  }
+
+  /**
+   * Sends the given request on the given connection, with the token prepared
+   * for its server if any.
+   */
+  private void send(final SpnegoHttpURLConnection conn, final SpnegoHttpRequest request)
+      throws GSSException, PrivilegedActionException, IOException {
+
+    final SpnegoTokenPrefetcher tokens = this.prefetcher;
+    if (null != tokens) {
+      final SpnegoTokenPrefetcher.Token token =
+          tokens.take(request.getUrl(), request.isCredDeleg(), getExecutor());
+      if (null != token) {
+        conn.setPreparedToken(token);
+      }
+    }
+    conn.connect(request.getUrl(), this.proxy, request.getBody());
+  }
+
+  /**
+   * Sends the given request in the background and reads its response.
+   * The connection is disconnected once the response is read.
+   * <p/>
+   * <p>
+   * The calls run on the executor of this client (see {@link #setExecutor(ExecutorService)}),
+   * each call holding one of its threads for the whole exchange.
+   * </p>
+   * @param request the request to send
+   * @return the future response
+   */
+  public Future<SpnegoHttpResponse> executeAsync(final SpnegoHttpRequest request) {
+    if (null == request) {
+      throw new IllegalArgumentException("request parameter is null");
+    }
+
+    return getExecutor().submit(new Callable<SpnegoHttpResponse>() {
+      @Override
+      public SpnegoHttpResponse call() throws Exception {
+        return fetch(request, 0);
+      }
+    });
+  }
+
+  /**
+   * Sends the given requests in the background, at most
+   * <code>parallelism</code> at a time, and returns their future responses
+   * in the order of the requests.
+   * @param requests the requests to send
+   * @param parallelism maximum number of concurrent calls of this batch
+   * @param timeout deadline of each call, from the submission of the batch (0 for none)
+   * @param unit unit of the timeout
+   * @return the future responses, in the order of the requests
+   * @see #executeAll(java.util.List, int, long, java.util.concurrent.TimeUnit,
+   * java.util.concurrent.BlockingQueue)
+   */
+  public List<Future<SpnegoHttpResponse>> executeAll(final List<SpnegoHttpRequest> requests,
+      final int parallelism, final long timeout, final TimeUnit unit) {
+    return executeAll(requests, parallelism, timeout, unit, null);
+  }
+
+  /**
+   * Sends the given requests in the background, at most
+   * <code>parallelism</code> at a time, and returns their future responses
+   * in the order of the requests. Each future is also added to the given
+   * queue as soon as it is done, so that the responses may be handled as
+   * they complete.
+   * <p/>
+   * <p>
+   * All the calls share the credential of this client. The number of
+   * concurrent calls to a same host is also bounded by
+   * {@link #setMaxCallsPerHost(int)}. A call that exceeds its deadline fails
+   * with a SocketTimeoutException: its connection is closed once the deadline
+   * is reached, whatever leg of the exchange or part of the response is in
+   * progress, and a call not started before its deadline is not sent at all.
+   * Cancelling a future that is not started yet removes its request from the
+   * batch. A future is not added to a bounded queue that is full.
+   * </p>
+   * @param requests the requests to send
+   * @param parallelism maximum number of concurrent calls of this batch
+   * @param timeout deadline of each call, from the submission of the batch (0 for none)
+   * @param unit unit of the timeout
+   * @param completed optional queue of the futures, in completion order
+   * @return the future responses, in the order of the requests
+   */
+  public List<Future<SpnegoHttpResponse>> executeAll(final List<SpnegoHttpRequest> requests,
+      final int parallelism, final long timeout, final TimeUnit unit,
+      final BlockingQueue<Future<SpnegoHttpResponse>> completed) {
+
+    if (null == requests) {
+      throw new IllegalArgumentException("requests parameter is null");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+    }
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+    }
+
+    // the deadline runs from the submission: a call still queued expires too
+    final long millis = unit.toMillis(timeout);
+    final long deadline = (millis == 0) ? 0 : System.currentTimeMillis() + millis;
+    final List<Callable<SpnegoHttpResponse>> calls =
+        new ArrayList<Callable<SpnegoHttpResponse>>(requests.size());
+    for (final SpnegoHttpRequest request : requests) {
+      calls.add(new Callable<SpnegoHttpResponse>() {
+        @Override
+        public SpnegoHttpResponse call() throws Exception {
+          return fetch(request, deadline);
+        }
+      });
+    }
+
+    return submitAll(calls, parallelism, completed);
+  }
+
+  /**
+   * Runs the given calls on the executor of this client, at most
+   * <code>parallelism</code> at a time, and returns their futures in the
+   * order of the calls. Each future is also offered to the given queue, if
+   * any, as soon as it is done.
+   * @param calls the calls to run
+   * @param parallelism maximum number of concurrent calls
+   * @param completed optional queue of the futures, in completion order
+   * @return the futures, in the order of the calls
+   */
+  <T> List<Future<T>> submitAll(final List<? extends Callable<T>> calls,
+      final int parallelism, final BlockingQueue<Future<T>> completed) {
+
+    final List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(calls.size());
+    for (final Callable<T> call : calls) {
+      tasks.add(new FutureTask<T>(call) {
+        @Override
+        protected void done() {
+          if (null != completed) {
+            completed.offer(this);
+          }
+        }
+      });
+    }
+
+    // each worker runs the next task not yet started
+    final AtomicInteger next = new AtomicInteger(0);
+    final Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = next.getAndIncrement(); i < tasks.size(); i = next.getAndIncrement()) {
+          tasks.get(i).run();
+        }
+      }
+    };
+    final ExecutorService service = getExecutor(parallelism);
+    for (int i = Math.min(parallelism, tasks.size()); i > 0; i--) {
+      service.execute(worker);
+    }
+
+    return new ArrayList<Future<T>>(tasks);
+  }
+
+  /**
+   * Sends the given request, bounded by the limit of calls per host, and
+   * reads its response. The request is not sent if the given deadline (in
+   * milliseconds since the epoch, 0 for none) is already exceeded.
+   */
+  private SpnegoHttpResponse fetch(final SpnegoHttpRequest request, final long deadline)
+      throws GSSException, PrivilegedActionException, IOException, InterruptedException {
+
+    final Semaphore permits = getHostPermits(request.getUrl().getHost());
+    if (null != permits) {
+      if (deadline == 0) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(left(request, deadline), TimeUnit.MILLISECONDS)) {
+        throw new SocketTimeoutException("deadline exceeded before sending " + request);
+      }
+    }
+
+    try {
+      final int remaining = (deadline == 0) ? 0
+          : (int) Math.min(left(request, deadline), Integer.MAX_VALUE);
+      final SpnegoHttpURLConnection conn = open(request, remaining);
+      final ScheduledFuture<?> watchdog = (deadline == 0) ? null : watch(conn, deadline);
+      try {
+        send(conn, request);
+        return SpnegoHttpResponse.read(conn);
+      } catch (IOException e) {
+        if (null != watchdog && System.currentTimeMillis() >= deadline) {
+          final SocketTimeoutException timedOut =
+              new SocketTimeoutException("deadline exceeded by " + request);
+          timedOut.initCause(e);
+          throw timedOut;
+        }
+        throw e;
+      } finally {
+        if (null != watchdog) {
+          // a cancelled task would otherwise stay queued until its deadline
+          watchdog.cancel(false);
+          WATCHDOG.remove((Runnable) watchdog);
+        }
+        conn.disconnect();
+      }
+    } finally {
+      if (null != permits) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Returns the milliseconds left before the given deadline, or throws a
+   * SocketTimeoutException if it is exceeded.
+   */
+  private static long left(final SpnegoHttpRequest request, final long deadline)
+      throws SocketTimeoutException {
+    final long left = deadline - System.currentTimeMillis();
+    if (left <= 0) {
+      throw new SocketTimeoutException("deadline exceeded before sending " + request);
+    }
+    return left;
+  }
+
+  /**
+   * Returns the permits of the calls to the given host, null if unbounded.
+   */
+  private Semaphore getHostPermits(final String host) {
+    final int max = this.maxCallsPerHost;
+    if (max == 0) {
+      return null;
+    }
+
+    final String key = host.toLowerCase(Locale.ENGLISH);
+    Semaphore permits = this.hostPermits.get(key);
+    if (null == permits) {
+      final Semaphore created = new Semaphore(max, true);
+      permits = this.hostPermits.putIfAbsent(key, created);
+      if (null == permits) {
+        permits = created;
+      }
+    }
+    return permits;
+  }
+
+  /**
+   * Aborts the given connection at the given deadline.
+   */
+  private static ScheduledFuture<?> watch(final SpnegoHttpURLConnection conn,
+      final long deadline) {
+    return WATCHDOG.schedule(new Runnable() {
+      @Override
+      public void run() {
+        conn.abort();
+      }
+    }, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the executor of the background calls, creating a default one if
+   * none has been given: a pool of {@link #setThreads(int)} daemon threads,
+   * with an unbounded queue of the pending calls. The idle threads end after
+   * a minute.
+   */
+  private ExecutorService getExecutor() {
+    return getExecutor(0);
+  }
+
+  /**
+   * Returns the executor of the background calls, the default one being
+   * grown to at least the given number of threads so that a batch runs with
+   * the parallelism it asked for.
+   */
+  private synchronized ExecutorService getExecutor(final int parallelism) {
+    if (null == this.executor) {
+      final ThreadFactory factory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+          final Thread thread =
+              new Thread(runnable, "spnego-client-" + this.count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+      final int size = this.threads;
+      final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+      pool.allowCoreThreadTimeOut(true);
+      this.executor = pool;
+      this.ownsExecutor = true;
+    }
+    if (this.ownsExecutor) {
+      resize((ThreadPoolExecutor) this.executor, parallelism);
+    }
+    return this.executor;
+  }
+
+  /**
+   * Grows the given pool to the given number of threads, if smaller.
+   */
+  private static void resize(final ThreadPoolExecutor pool, final int size) {
+    if (pool.getMaximumPoolSize() < size) {
+      // the maximum first: it must never be under the core size
+      pool.setMaximumPoolSize(size);
+      pool.setCorePoolSize(size);
+    }
+  }
+
+  /**
+   * Sets the number of threads of the default executor of the background
+   * calls (asynchronous, batched, and token prefetch). Default is 8. A batch
+   * whose parallelism is higher grows the default executor to that
+   * parallelism. Has no effect on an executor given by
+   * {@link #setExecutor(ExecutorService)}.
+   * @param threads number of threads (at least 1)
+   */
+  public synchronized void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1: " + threads);
+    }
+    this.threads = threads;
+    if (this.ownsExecutor) {
+      resize((ThreadPoolExecutor) this.executor, threads);
+    }
+  }
+
+  /**
+   * Sets the executor of the asynchronous calls. The given executor is not
+   * shut down by {@link #close()}. Its size bounds the number of concurrent
+   * background calls, whatever the parallelism of a batch.
+   * @param executor executor of the asynchronous calls
+   */
+  public synchronized void setExecutor(final ExecutorService executor) {
+    if (null == executor) {
+      throw new IllegalArgumentException("executor parameter is null");
+    }
+    if (this.ownsExecutor) {
+      this.executor.shutdown();
+      this.ownsExecutor = false;
+    }
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the credential shared by the calls of this client.
+   * @return client credential
+   */
+  synchronized GSSCredential getCredential() {
+    return (null == this.lease) ? this.credential : this.lease.getCredential();
+  }
+
+  /**
+   * Returns a lease on the shared credential for one call. The credential of
+   * this client is first renewed if its remaining lifetime is under
+   * {@link SpnegoCredentialCache#RENEWAL_THRESHOLD} seconds: the calls in
+   * progress keep the previous one until they release their lease. The login
+   * is done outside of the monitor of this client, so that the other calls
+   * go on with the current credential meanwhile.
+   */
+  private SpnegoCredentialCache.Lease borrow() throws GSSException, PrivilegedActionException {
+    final SpnegoCredentialCache.Lease current;
+    final String secret;
+    synchronized (this) {
+      if (null == this.lease) {
+        throw new IllegalStateException("client is closed");
+      }
+      if (!this.lease.isExpiring()) {
+        return this.lease.share();
+      }
+      current = this.lease;
+      secret = (null == this.password) ? null : new String(this.password);
+    }
+
+    final SpnegoCredentialCache.Lease renewed;
+    try {
+      renewed = SpnegoCredentialCache.borrow(this.loginModuleName, this.username, secret);
+    } catch (LoginException e) {
+      final GSSException gsse = new GSSException(GSSException.NO_CRED, 0, e.getMessage());
+      gsse.initCause(e);
+      throw gsse;
+    }
+
+    synchronized (this) {
+      if (current != this.lease) {
+        // closed, or renewed by another call meanwhile
+        renewed.release();
+        if (null == this.lease) {
+          throw new IllegalStateException("client is closed");
+        }
+        return this.lease.share();
+      }
+      current.release();
+      this.lease = renewed;
+
+      // the tokens prepared with the previous credential are discarded
+      if (null != this.prefetcher) {
+        this.prefetcher.close();
+        this.prefetcher = new SpnegoTokenPrefetcher(renewed.getCredential());
+      }
+      return renewed.share();
+    }
+  }
+
+  /**
+   * Sets whether the TCP connections are kept alive between the calls to the
+   * same server. Default is true.
+   * <p/>
+   * <p>
+   * The idle connections are pooled by the JDK: at most
+   * <code>http.maxConnections</code> (System property, default 5) per server,
+   * evicted after the Keep-Alive timeout of the server. As that limit is
+   * JVM-wide and read by the JDK when it first pools a connection, it is
+   * set at the start of the JVM, for instance with
+   * <code>-Dhttp.maxConnections=20</code>. It does not bound the concurrent
+   * calls: the connections beyond it are closed once their call is done.
+   * </p>
+   * @param keepAlive true to keep the connections alive
+   * @see SpnegoHttpURLConnection#setKeepAlive(boolean)
+   */
+  public void setKeepAlive(final boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Sets the maximum number of concurrent background calls (asynchronous or
+   * batched) to a same host. Default is 0, no limit. It should be set before
+   * the first background call.
+   * @param max maximum number of concurrent calls per host, 0 for no limit
+   */
+  public void setMaxCallsPerHost(final int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("max must not be negative: " + max);
+    }
+    this.maxCallsPerHost = max;
+    this.hostPermits.clear();
+  }
+
+  /**
+   * Sets whether the requests with a body are preceded by a HEAD request that
+   * authenticates the client first. Default is false.
+   * @param preflight true to authenticate before sending the bodies
+   * @see SpnegoHttpURLConnection#setPreflight(boolean)
+   */
+  public void setPreflight(final boolean preflight) {
+    this.preflight = preflight;
+  }
+
+  /**
+   * Sets the maximum number of redirects followed by each call. Default is 0:
+   * the redirect response is returned.
+   * @param max maximum number of redirects to follow
+   * @see SpnegoHttpURLConnection#setMaxRedirects(int)
+   */
+  public void setMaxRedirects(final int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("max must not be negative: " + max);
+    }
+    this.maxRedirects = max;
+  }
+
+  /**
+   * Sets the maximum number of request/response legs used to establish a
+   * GSSContext. Default is 3.
+   * @param legs maximum number of legs (at least 1)
+   * @see SpnegoHttpURLConnection#setMaxContextLegs(int)
+   */
+  public void setMaxContextLegs(final int legs) {
+    if (legs < 1) {
+      throw new IllegalArgumentException("legs must be at least 1: " + legs);
+    }
+    this.maxContextLegs = legs;
+  }
+
+  /**
+   * Sets the cookie store shared by the calls of this client, for instance a
+   * <code>new CookieManager(null, CookiePolicy.ACCEPT_ORIGINAL_SERVER)</code>.
+   * The session cookies set by a server after a first authentication are then
+   * sent back with the next calls, which send a Negotiate token only if the
+   * server challenges them again. Default is null: cookies are ignored.
+   * @param cookies a thread-safe cookie store, or null to ignore the cookies
+   * @see SpnegoHttpURLConnection#setCookieHandler(java.net.CookieHandler)
+   */
+  public void setCookieHandler(final CookieHandler cookies) {
+    this.cookies = cookies;
+  }
+
+  /**
+   * Sets whether the initial Negotiate token of the next call to a server is
+   * generated in the background, on the executor of this client. Default is
+   * false.
+   * <p/>
+   * <p>
+   * Each call then takes the token that is ready for its server, if any, and
+   * triggers the generation of the next one if the server was already called
+   * within the last minute: in a steady flow of calls, the context creation
+   * and the service ticket request are off the critical path, while a server
+   * called once costs no extra context. A token not used within a minute is
+   * discarded. Use {@link #prefetch(java.net.URL)} to warm a server up before
+   * the first call.
+   * </p>
+   * @param enabled true to generate the tokens in the background
+   */
+  public synchronized void setTokenPrefetch(final boolean enabled) {
+    if (enabled && null == this.prefetcher) {
+      this.prefetcher = new SpnegoTokenPrefetcher(getCredential());
+    } else if (!enabled && null != this.prefetcher) {
+      this.prefetcher.close();
+      this.prefetcher = null;
+    }
+  }
+
+  /**
+   * Generates in the background the initial token of the next call to the
+   * server of the given URL. Has no effect if the token prefetch is disabled.
+   * @param url HTTP address of the server
+   * @see #setTokenPrefetch(boolean)
+   */
+  public void prefetch(final URL url) {
+    final SpnegoTokenPrefetcher tokens = this.prefetcher;
+    if (null != tokens) {
+      tokens.prefetch(url, false, getExecutor());
+    }
+  }
+
+  /**
+   * Sets the proxy used to connect to the servers.
+   * @param proxy the proxy or null for a direct connection
+   */
+  public void setProxy(final Proxy proxy) {
+    this.proxy = proxy;
+  }
+
+  /**
+   * Gives the credential back to the credential cache, clears the password
+   * and shuts the default executor down. The client must not be used
+   * afterwards.
+   */
+  public void close() {
+    synchronized (this) {
+      if (null != this.prefetcher) {
+        this.prefetcher.close();
+        this.prefetcher = null;
+      }
+      if (this.ownsExecutor) {
+        this.executor.shutdown();
+        this.ownsExecutor = false;
+      }
+      this.executor = null;
+      if (null != this.lease) {
+        this.lease.release();
+        this.lease = null;
+      }
+      if (null != this.password) {
+        Arrays.fill(this.password, '\0');
+        this.password = null;
+      }
+    }
+  }
+}
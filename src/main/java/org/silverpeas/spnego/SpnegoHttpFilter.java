@@ -186,6 +186,16 @@ public final class SpnegoHttpFilter implements Filter {
    */
   private transient SpnegoAuthenticator authenticator = null;
 
+  /**
+   * Binds the authenticated principals to the HTTP session (null if disabled).
+   */
+  private transient SpnegoSessionCache sessionCache = null;
+
+  /**
+   * Issues and verifies the signed authentication cookies (null if disabled).
+   */
+  private transient SpnegoAuthCookie authCookie = null;
+
   @Override
   public void init(final FilterConfig filterConfig) throws ServletException {
 
@@ -195,6 +205,15 @@ public final class SpnegoHttpFilter implements Filter {
 
       // pre-authenticate
       this.authenticator = new SpnegoAuthenticator(config);
+
+      if (config.isSessionCacheEnabled()) {
+        this.sessionCache = new SpnegoSessionCache(config.getSessionCacheTtl());
+      }
+
+      if (config.isCookieEnabled()) {
+        this.authCookie = new SpnegoAuthCookie(config.getCookieKey(),
+            config.getCookiePreviousKey(), config.getCookieTtl());
+      }
     } catch (final LoginException le) {
       throw new ServletException(le);
     } catch (final GSSException gsse) {
@@ -214,6 +233,8 @@ public final class SpnegoHttpFilter implements Filter {
       this.authenticator.dispose();
       this.authenticator = null;
     }
+    this.sessionCache = null;
+    this.authCookie = null;
   }
 
   @Override
@@ -227,6 +248,26 @@ public final class SpnegoHttpFilter implements Filter {
       return;
     }
 
+    // Authentication is already performed within the HTTP session
+    if (null != this.sessionCache) {
+      final SpnegoPrincipal cached = this.sessionCache.get(httpRequest);
+      if (null != cached) {
+        LOGGER.finer("principal from session=" + cached);
+        chain.doFilter(new SpnegoHttpServletRequest(httpRequest, cached), response);
+        return;
+      }
+    }
+
+    // Authentication is already performed, possibly by another node of the cluster
+    if (null != this.authCookie) {
+      final SpnegoPrincipal signed = this.authCookie.verify(httpRequest);
+      if (null != signed) {
+        LOGGER.finer("principal from cookie=" + signed);
+        chain.doFilter(new SpnegoHttpServletRequest(httpRequest, signed), response);
+        return;
+      }
+    }
+
     final SpnegoHttpServletResponse spnegoResponse =
         new SpnegoHttpServletResponse((HttpServletResponse) response);
 
@@ -264,6 +305,14 @@ public final class SpnegoHttpFilter implements Filter {
 
     LOGGER.fine("principal=" + principal);
 
+    if (null != this.sessionCache) {
+      this.sessionCache.put(httpRequest, principal);
+    }
+
+    if (null != this.authCookie) {
+      this.authCookie.issue(httpRequest, (HttpServletResponse) response, principal);
+    }
+
     chain.doFilter(new SpnegoHttpServletRequest(httpRequest, principal), response);
   }
 
@@ -294,6 +343,18 @@ public final class SpnegoHttpFilter implements Filter {
     public static final String THROW_TYPED_RUNTIME_EXCEPTION =
         "spnego.throw" + ".typedRuntimeException";
 
+    /**
+     * Servlet init param name in web.xml <b>spnego.acceptor.concurrency</b>.
+     * <p/>
+     * <p>The number of SPNEGO handshakes that may be accepted at the same
+     * time. Each unit holds its own server credential, acquired from the
+     * pre-authenticated account. Set it to <code>0</code> to use one per
+     * available processor.</p>
+     * <p/>
+     * <p>Default is <code>1</code>: handshakes are serialized.</p>
+     */
+    public static final String ACCEPTOR_CONCURRENCY = "spnego.acceptor.concurrency";
+
     /**
      * Servlet init param name in web.xml <b>spnego.allow.basic</b>.
      * <p/>
@@ -354,6 +415,28 @@ public final class SpnegoHttpFilter implements Filter {
      */
     public static final String AUTHZ_HEADER = "Authorization";
 
+    /**
+     * Servlet init param name in web.xml <b>spnego.basic.cache.size</b>.
+     * <p/>
+     * <p>Maximum number of verified Basic Auth credentials kept in memory.
+     * The least recently used ones are evicted first.</p>
+     * <p/>
+     * <p>Default is <code>1000</code>.</p>
+     */
+    public static final String BASIC_CACHE_SIZE = "spnego.basic.cache.size";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.basic.cache.ttl</b>.
+     * <p/>
+     * <p>Time-to-live, in seconds, of a Basic Auth credential verified
+     * against the KDC. Within that time, the same username and password
+     * are validated in memory against a salted hash of the password.</p>
+     * <p/>
+     * <p>Default is <code>0</code>: every Basic Auth request is verified
+     * against the KDC.</p>
+     */
+    public static final String BASIC_CACHE_TTL = "spnego.basic.cache.ttl";
+
     /**
      * HTTP Response Header <b>Basic</b>.
      * <p/>
@@ -369,6 +452,36 @@ public final class SpnegoHttpFilter implements Filter {
      */
     public static final String CLIENT_MODULE = "spnego.login.client.module";
 
+    /**
+     * Servlet init param name in web.xml <b>spnego.cookie.key</b>.
+     * <p/>
+     * <p>Secret key used to sign the authentication cookie issued after a
+     * successful authentication. Requests presenting a valid cookie are
+     * authenticated without any GSS call. Share the same key among all the
+     * nodes of a cluster.</p>
+     * <p/>
+     * <p>Default is no key: no authentication cookie is issued.</p>
+     */
+    public static final String COOKIE_KEY = "spnego.cookie.key";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.cookie.previous.key</b>.
+     * <p/>
+     * <p>Previous secret key of the authentication cookie. Cookies signed
+     * with it are still accepted so that the key can be rotated.</p>
+     */
+    public static final String COOKIE_PREVIOUS_KEY = "spnego.cookie.previous.key";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.cookie.ttl</b>.
+     * <p/>
+     * <p>Maximum time-to-live, in seconds, of the authentication cookie. The
+     * cookie never outlives the Kerberos ticket of the client.</p>
+     * <p/>
+     * <p>Default is <code>3600</code>.</p>
+     */
+    public static final String COOKIE_TTL = "spnego.cookie.ttl";
+
     /**
      * Servlet init param name in web.xml <b>spnego.krb5.conf</b>.
      * <p/>
@@ -449,11 +562,64 @@ public final class SpnegoHttpFilter implements Filter {
      */
     public static final String PROMPT_NTLM = "spnego.prompt.ntlm";
 
+    /**
+     * Servlet init param name in web.xml <b>spnego.replay.cache</b>.
+     * <p/>
+     * <p>Replay cache used to detect replayed SPNEGO tokens:
+     * <li><code>jdk</code>: the one of the JDK Kerberos acceptor (default)</li>
+     * <li><code>memory</code>: a bounded in-memory cache of this library,
+     * checked before the token is given to the JDK acceptor</li>
+     * </p>
+     * <p/>
+     * <p>The JDK replay cache still runs behind the in-memory one. It is
+     * configured for the whole JVM by the System property
+     * <code>sun.security.krb5.rcache</code>, which this library does not set:
+     * unset, the JDK uses its own in-memory cache, <code>dfl</code> selects
+     * its file-based cache, and <code>-Dsun.security.krb5.rcache=none</code>
+     * leaves the replay detection to the in-memory cache of this library
+     * only.</p>
+     */
+    public static final String REPLAY_CACHE = "spnego.replay.cache";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.replay.cache.size</b>.
+     * <p/>
+     * <p>Maximum number of tokens recorded by the in-memory replay cache.
+     * When it is full, the tokens closest to the end of their clock skew
+     * window are forgotten first.</p>
+     * <p/>
+     * <p>Default is <code>100000</code>.</p>
+     */
+    public static final String REPLAY_CACHE_SIZE = "spnego.replay.cache.size";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.replay.cache.skew</b>.
+     * <p/>
+     * <p>Clock skew window, in seconds, during which the in-memory replay
+     * cache records an accepted token. It should match the clockskew of
+     * the krb5.conf file.</p>
+     * <p/>
+     * <p>Default is <code>300</code>.</p>
+     */
+    public static final String REPLAY_CACHE_SKEW = "spnego.replay.cache.skew";
+
     /**
      * Servlet init param name in web.xml <b>spnego.login.server.module</b>.
      * <p/>
      * <p>The LoginModule name that exists in the login.conf file.</p>
      */
     public static final String SERVER_MODULE = "spnego.login.server.module";
+
+    /**
+     * Servlet init param name in web.xml <b>spnego.session.cache.ttl</b>.
+     * <p/>
+     * <p>Time-to-live, in seconds, of the authenticated principal bound
+     * to the HTTP session. Within that time, the requests of the session
+     * are authenticated without any GSS call.</p>
+     * <p/>
+     * <p>Default is <code>0</code>: the principal is not bound to the
+     * session.</p>
+     */
+    public static final String SESSION_CACHE_TTL = "spnego.session.cache.ttl";
   }
 }
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable HTTP request to be executed by a {@link SpnegoHttpClient}.
+ * <p/>
+ * <p>
+ * The <code>with*</code> methods never modify the request but return a copy of it with
+ * the given change, so a request may be shared between threads and reused:
+ * <pre>
+ *  final SpnegoHttpRequest request = new SpnegoHttpRequest("POST", url)
+ *      .withHeader("Content-Type", "text/xml; charset=UTF-8")
+ *      .withBody(payload);
+ * </pre>
+ * </p>
+ * @see SpnegoHttpClient
+ */
+public final class SpnegoHttpRequest {
+
+  private final transient String method;
+
+  private final transient URL url;
+
+  private final transient Map<String, List<String>> headers;
+
+  private final transient SpnegoRequestBody body;
+
+  private final transient boolean credDeleg;
+
+  /**
+   * Creates a GET request.
+   * @param url HTTP address
+   */
+  public SpnegoHttpRequest(final URL url) {
+    this("GET", url);
+  }
+
+  /**
+   * Creates a request with the given method.
+   * @param method HTTP method
+   * @param url HTTP address
+   */
+  public SpnegoHttpRequest(final String method, final URL url) {
+    this(method, url, Collections.<String, List<String>>emptyMap(), null, false);
+  }
+
+  private SpnegoHttpRequest(final String method, final URL url,
+      final Map<String, List<String>> headers, final SpnegoRequestBody body,
+      final boolean credDeleg) {
+
+    if (null == method || method.isEmpty()) {
+      throw new IllegalArgumentException("method parameter is null or empty");
+    }
+    if (null == url) {
+      throw new IllegalArgumentException("url parameter is null");
+    }
+
+    this.method = method;
+    this.url = url;
+    this.headers = headers;
+    this.body = body;
+    this.credDeleg = credDeleg;
+  }
+
+  /**
+   * Returns a copy of this request with the given header added.
+   * @param key request property name
+   * @param value request property value
+   * @return a new request
+   * @see java.net.URLConnection#addRequestProperty(String, String)
+   */
+  public SpnegoHttpRequest withHeader(final String key, final String value) {
+    if (null == key || key.isEmpty()) {
+      throw new IllegalArgumentException("key parameter is null or empty");
+    }
+    if (null == value) {
+      throw new IllegalArgumentException("value parameter is null");
+    }
+
+    final Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+    for (Map.Entry<String, List<String>> header : this.headers.entrySet()) {
+      copy.put(header.getKey(), header.getValue());
+    }
+    final List<String> values = new ArrayList<String>();
+    if (copy.containsKey(key)) {
+      values.addAll(copy.get(key));
+    }
+    values.add(value);
+    copy.put(key, Collections.unmodifiableList(values));
+
+    return new SpnegoHttpRequest(this.method, this.url, Collections.unmodifiableMap(copy),
+        this.body, this.credDeleg);
+  }
+
+  /**
+   * Returns a copy of this request with the given message/payload.
+   * @param payload message/payload to send to server (copied)
+   * @return a new request
+   */
+  public SpnegoHttpRequest withBody(final byte[] payload) {
+    return new SpnegoHttpRequest(this.method, this.url, this.headers,
+        (null == payload) ? null : SpnegoRequestBody.of(payload.clone()), this.credDeleg);
+  }
+
+  /**
+   * Returns a copy of this request with the given streamed message/payload.
+   * A request with a body that is not repeatable can be executed only once.
+   * @param payload message/payload to send to server
+   * @return a new request
+   * @see SpnegoRequestBody
+   */
+  public SpnegoHttpRequest withBody(final SpnegoRequestBody payload) {
+    return new SpnegoHttpRequest(this.method, this.url, this.headers, payload, this.credDeleg);
+  }
+
+  /**
+   * Returns a copy of this request requesting (or not) the credential to be delegated.
+   * @param requestDelegation true to allow/request delegation
+   * @return a new request
+   */
+  public SpnegoHttpRequest withCredDeleg(final boolean requestDelegation) {
+    return new SpnegoHttpRequest(this.method, this.url, this.headers, this.body,
+        requestDelegation);
+  }
+
+  /**
+   * Returns the HTTP method.
+   * @return HTTP method
+   */
+  public String getMethod() {
+    return this.method;
+  }
+
+  /**
+   * Returns the HTTP address.
+   * @return HTTP address
+   */
+  public URL getUrl() {
+    return this.url;
+  }
+
+  /**
+   * Returns the request headers.
+   * @return unmodifiable map of the request headers
+   */
+  public Map<String, List<String>> getHeaders() {
+    return this.headers;
+  }
+
+  /**
+   * Returns the message/payload.
+   * @return the payload or null
+   */
+  SpnegoRequestBody getBody() {
+    return this.body;
+  }
+
+  /**
+   * Returns true if the credential is requested to be delegated.
+   * @return true if delegation is requested
+   */
+  public boolean isCredDeleg() {
+    return this.credDeleg;
+  }
+
+  @Override
+  public String toString() {
+    return this.method + ' ' + this.url;
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable HTTP response, fully read, as returned by the asynchronous calls of a
+ * {@link SpnegoHttpClient}.
+ * <p/>
+ * <p>
+ * The connection the response has been read from is already disconnected (and kept
+ * alive if the client is configured so). As the body is held in memory, large bodies
+ * are better read with {@link SpnegoHttpClient#execute(SpnegoHttpRequest)}.
+ * </p>
+ * @see SpnegoHttpClient#executeAsync(SpnegoHttpRequest)
+ */
+public final class SpnegoHttpResponse {
+
+  private final transient int status;
+
+  private final transient String message;
+
+  private final transient Map<String, List<String>> headers;
+
+  private final transient byte[] body;
+
+  private final transient boolean contextEstablished;
+
+  private SpnegoHttpResponse(final int status, final String message,
+      final Map<String, List<String>> headers, final byte[] body,
+      final boolean contextEstablished) {
+    this.status = status;
+    this.message = message;
+    this.headers = headers;
+    this.body = body;
+    this.contextEstablished = contextEstablished;
+  }
+
+  /**
+   * Reads the response of the given connection. The connection is not disconnected.
+   * @param spnego a connected SpnegoHttpURLConnection
+   * @return the response
+   * @throws java.io.IOException
+   */
+  static SpnegoHttpResponse read(final SpnegoHttpURLConnection spnego) throws IOException {
+    final int status = spnego.getResponseCode();
+    final String message = spnego.getResponseMessage();
+
+    final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    for (int i = 0; null != spnego.getHeaderField(i); i++) {
+      final String key = spnego.getHeaderFieldKey(i);
+      if (null == key) {
+        // status line
+        continue;
+      }
+      List<String> values = headers.get(key);
+      if (null == values) {
+        values = new ArrayList<String>(1);
+        headers.put(key, values);
+      }
+      values.add(spnego.getHeaderField(i));
+    }
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      header.setValue(Collections.unmodifiableList(header.getValue()));
+    }
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final InputStream in = spnego.getResponseStream();
+    if (null != in) {
+      try {
+        final byte[] buffer = new byte[4096];
+        int read = in.read(buffer);
+        while (read >= 0) {
+          body.write(buffer, 0, read);
+          read = in.read(buffer);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    return new SpnegoHttpResponse(status, message, Collections.unmodifiableMap(headers),
+        body.toByteArray(), spnego.isContextEstablished());
+  }
+
+  /**
+   * Returns the HTTP status code.
+   * @return status code
+   */
+  public int getStatus() {
+    return this.status;
+  }
+
+  /**
+   * Returns the HTTP response message.
+   * @return response message, null if none
+   */
+  public String getMessage() {
+    return this.message;
+  }
+
+  /**
+   * Returns the response headers.
+   * @return unmodifiable map of the response headers
+   */
+  public Map<String, List<String>> getHeaders() {
+    return this.headers;
+  }
+
+  /**
+   * Returns the first value of the given header.
+   * @param name header name (case insensitive)
+   * @return header value, null if absent
+   */
+  public String getHeader(final String name) {
+    for (Map.Entry<String, List<String>> header : this.headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the response body.
+   * @return a copy of the body, empty if none
+   */
+  public byte[] getBody() {
+    return this.body.clone();
+  }
+
+  /**
+   * Returns true if GSSContext has been established.
+   * @return true if GSSContext has been established, false otherwise.
+   */
+  public boolean isContextEstablished() {
+    return this.contextEstablished;
+  }
+
+  @Override
+  public String toString() {
+    return this.status + " " + this.message;
+  }
+}
@@ -67,7 +67,11 @@ final class SpnegoHttpServletRequest extends HttpServletRequestWrapper
     final String authType;
     final String header = this.getHeader(Constants.AUTHZ_HEADER);
 
-    if (header.startsWith(Constants.NEGOTIATE_HEADER)) {
+    if (null == header) {
+      // authenticated from the HTTP session
+      authType = super.getAuthType();
+
+    } else if (header.startsWith(Constants.NEGOTIATE_HEADER)) {
       authType = Constants.NEGOTIATE_HEADER;
 
     } else if (header.startsWith(Constants.BASIC_HEADER)) {
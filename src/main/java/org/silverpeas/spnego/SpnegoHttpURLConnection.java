@@ -27,20 +27,29 @@ import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.CookieHandler;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.PrivilegedActionException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -125,12 +134,27 @@ public final class SpnegoHttpURLConnection {
 
   private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
 
+  private static final byte[] EMPTY_BYTE = new byte[0];
+
+  private static final int HTTP_SEE_OTHER = 303;
+
+  private static final int HTTP_TEMPORARY_REDIRECT = 307;
+
+  private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+  private static final Map<String, List<String>> NO_HEADERS =
+      Collections.<String, List<String>>emptyMap();
+
   /**
-   * GSSContext is not thread-safe.
+   * Maximum number of unread response bytes drained to keep a connection alive.
    */
-  private static final Lock LOCK = new ReentrantLock();
+  private static final int MAX_DRAIN = 64 * 1024;
 
-  private static final byte[] EMPTY_BYTE = new byte[0];
+  /**
+   * Size of the direct buffer, and of the file transfers, used to transfer
+   * a response body.
+   */
+  private static final int TRANSFER_SIZE = 256 * 1024;
 
   /**
    * If false, this connection object has not created a communications link to
@@ -163,6 +187,13 @@ public final class SpnegoHttpURLConnection {
    */
   private transient GSSCredential credential;
 
+  /**
+   * Lease on a credential of the process-wide credential cache. If
+   * username/password, GSSCredential or LoginContext is provided (in
+   * constructor) without sharing then this field will always be null.
+   */
+  private transient SpnegoCredentialCache.Lease lease = null;
+
   /**
    * Flag to determine if GSSContext has been established. Users of this
    * class should always check that this field is true before using/trusting
@@ -174,7 +205,12 @@ public final class SpnegoHttpURLConnection {
    * Ref to HTTP URL Connection object after calling connect method.
    * Always call spnego.disconnect() when done using this class.
    */
-  private transient HttpURLConnection conn = null;
+  private transient volatile HttpURLConnection conn = null;
+
+  /**
+   * Flag set when the exchange is aborted by another thread.
+   */
+  private transient volatile boolean aborted = false;
 
   /**
    * Request credential to be delegated.
@@ -190,6 +226,51 @@ public final class SpnegoHttpURLConnection {
    */
   private transient boolean autoDisposeCreds = true;
 
+  /**
+   * Determines if the underlying TCP connection is given back to the
+   * keep-alive cache of the JDK on disconnect instead of being closed.
+   * Default is false.
+   */
+  private transient boolean keepAlive = false;
+
+  /**
+   * Maximum number of request/response legs to establish the GSSContext
+   * when the server requests a context loop.
+   * Default is 3.
+   */
+  private transient int maxContextLegs = 3;
+
+  /**
+   * Maximum number of redirects to follow.
+   * Default is 0 (redirects are not followed).
+   */
+  private transient int maxRedirects = 0;
+
+  /**
+   * Flag to authenticate with a request without body before sending the body.
+   */
+  private transient boolean preflight = false;
+
+  /**
+   * Connect timeout in milliseconds (0 for none).
+   */
+  private transient int connectTimeout = 0;
+
+  /**
+   * Read timeout in milliseconds (0 for none).
+   */
+  private transient int readTimeout = 0;
+
+  /**
+   * Context and initial token generated ahead of time (null if none).
+   */
+  private transient SpnegoTokenPrefetcher.Token prepared = null;
+
+  /**
+   * Cookie store of the client (null if cookies are ignored).
+   */
+  private transient CookieHandler cookies = null;
+
   /**
    * Creates an instance where the LoginContext relies on a keytab
    * file being specified by "java.security.auth.login.config" or
@@ -204,6 +285,37 @@ public final class SpnegoHttpURLConnection {
     this.credential = null;
   }
 
+  /**
+   * Creates an instance where the LoginContext relies on a keytab
+   * file being specified by "java.security.auth.login.config" or
+   * where LoginContext relies on tgtsessionkey.
+   * <p/>
+   * <p>
+   * If shared, the credential is borrowed from a process-wide cache: the
+   * login is done only by the first connection (or when the credential is
+   * about to expire) and the credential is given back to the cache instead
+   * of being disposed.
+   * </p>
+   * @param loginModuleName
+   * @param shared true to share the credential with the other connections
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  public SpnegoHttpURLConnection(final String loginModuleName, final boolean shared)
+      throws LoginException, PrivilegedActionException {
+
+    if (shared) {
+      this.loginContext = null;
+      this.lease = SpnegoCredentialCache.borrow(loginModuleName);
+      this.credential = this.lease.getCredential();
+      this.autoDisposeCreds = false;
+    } else {
+      this.loginContext = new LoginContext(loginModuleName);
+      this.loginContext.login();
+      this.credential = null;
+    }
+  }
+
   /**
    * Create an instance where the GSSCredential is specified by the parameter
    * and where the GSSCredential is automatically disposed after use.
@@ -225,6 +337,18 @@ public final class SpnegoHttpURLConnection {
     this.autoDisposeCreds = dispose;
   }
 
+  /**
+   * Creates an instance using the credential of the given lease. The lease
+   * is released by this instance.
+   * @param lease lease on a credential of the process-wide cache
+   */
+  SpnegoHttpURLConnection(final SpnegoCredentialCache.Lease lease) {
+    this.loginContext = null;
+    this.lease = lease;
+    this.credential = lease.getCredential();
+    this.autoDisposeCreds = false;
+  }
+
   /**
    * Creates an instance where the LoginContext does not require a keytab
    * file. However, the "java.security.auth.login.config" property must still
@@ -244,6 +368,44 @@ public final class SpnegoHttpURLConnection {
     this.credential = null;
   }
 
+  /**
+   * Creates an instance where the LoginContext does not require a keytab
+   * file. However, the "java.security.auth.login.config" property must still
+   * be set prior to instantiating this object.
+   * <p/>
+   * <p>
+   * If shared, the credential is borrowed from a process-wide cache keyed by
+   * the login module and the username: the login is done only by the first
+   * connection (or when the credential is about to expire, or when the
+   * password differs) and the credential is given back to the cache instead
+   * of being disposed.
+   * </p>
+   * @param loginModuleName
+   * @param username
+   * @param password
+   * @param shared true to share the credential with the other connections
+   * @throws javax.security.auth.login.LoginException
+   * @throws java.security.PrivilegedActionException
+   */
+  public SpnegoHttpURLConnection(final String loginModuleName, final String username,
+      final String password, final boolean shared)
+      throws LoginException, PrivilegedActionException {
+
+    if (shared) {
+      this.loginContext = null;
+      this.lease = SpnegoCredentialCache.borrow(loginModuleName, username, password);
+      this.credential = this.lease.getCredential();
+      this.autoDisposeCreds = false;
+    } else {
+      final CallbackHandler handler =
+          SpnegoProvider.getUsernamePasswordHandler(username, password);
+
+      this.loginContext = new LoginContext(loginModuleName, handler);
+      this.loginContext.login();
+      this.credential = null;
+    }
+  }
+
   /**
    * Throws IllegalStateException if this connection object has not yet created
    * a communications link to the specified URL.
@@ -284,12 +446,12 @@ public final class SpnegoHttpURLConnection {
   public HttpURLConnection connect(final URL url)
       throws GSSException, PrivilegedActionException, IOException {
 
-    return this.connect(url, null, null);
+    return this.connect(url, null, (SpnegoRequestBody) null);
   }
 
   public HttpURLConnection connect(final URL url, final Proxy proxy)
       throws GSSException, PrivilegedActionException, IOException {
-    return this.connect(url, proxy, null);
+    return this.connect(url, proxy, (SpnegoRequestBody) null);
   }
 
   public HttpURLConnection connect(final URL url, final ByteArrayOutputStream dooutput)
@@ -313,118 +475,350 @@ public final class SpnegoHttpURLConnection {
       final ByteArrayOutputStream dooutput)
       throws GSSException, PrivilegedActionException, IOException {
 
+    return this.connect(url, proxy,
+        (null == dooutput || dooutput.size() == 0) ? null : SpnegoRequestBody.of(dooutput));
+  }
+
+  public HttpURLConnection connect(final URL url, final SpnegoRequestBody body)
+      throws GSSException, PrivilegedActionException, IOException {
+    return this.connect(url, null, body);
+  }
+
+  /**
+   * Opens a communications link to the resource referenced by
+   * this URL, if such a connection has not already been established, and
+   * streams the given body to the server.
+   * <p/>
+   * <p>
+   * The body is sent in fixed-length streaming mode when its length is known
+   * and in chunked streaming mode otherwise: it is never buffered in memory.
+   * A body that is not repeatable is sent only once, so the context cannot
+   * be looped with it.
+   * </p>
+   * @param url
+   * @param proxy optional proxy
+   * @param body optional message/payload to send to server
+   * @return an HttpURLConnection object
+   * @throws org.ietf.jgss.GSSException
+   * @throws java.security.PrivilegedActionException
+   * @throws java.io.IOException
+   * @see java.net.URLConnection#connect()
+   */
+  public HttpURLConnection connect(final URL url, final Proxy proxy,
+      final SpnegoRequestBody body)
+      throws GSSException, PrivilegedActionException, IOException {
+
     assertNotConnected();
 
+    try {
+      URL target = url;
+      String method = this.requestMethod;
+      SpnegoRequestBody content = body;
+
+      if (this.preflight && null != body) {
+        this.exchange(target, proxy, "HEAD", null, false, true);
+        if (this.conn.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+          LOGGER.fine("Authentication rejected, body not sent: " + target);
+          return this.conn;
+        }
+        this.recycle();
+      }
+
+      this.exchange(target, proxy, method, content, false, true);
+
+      for (int hops = 0; hops < this.maxRedirects && isRedirect(this.conn.getResponseCode());
+          hops++) {
+        final String location = this.conn.getHeaderField("Location");
+        if (null == location) {
+          break;
+        }
+
+        final int code = this.conn.getResponseCode();
+        if (code == HTTP_SEE_OTHER || (code != HTTP_TEMPORARY_REDIRECT &&
+            code != HTTP_PERMANENT_REDIRECT && "POST".equalsIgnoreCase(method))) {
+          method = "GET";
+          content = null;
+        } else if (null != content && !content.isRepeatable()) {
+          LOGGER.warning("Redirect not followed: the body cannot be sent again: " + location);
+          break;
+        }
+
+        final URL next = new URL(target, location);
+        if ("https".equalsIgnoreCase(target.getProtocol()) &&
+            !"https".equalsIgnoreCase(next.getProtocol())) {
+          LOGGER.warning("Redirect not followed: downgrade from https: " + next);
+          break;
+        }
+        LOGGER.fine("Following redirect " + code + " to " + next);
+
+        // a token is generated again only for another service
+        final boolean sameService = next.getHost().equalsIgnoreCase(target.getHost());
+        // the credential and the headers of the caller go to the host of the url only
+        final boolean origin = next.getHost().equalsIgnoreCase(url.getHost());
+        this.recycle();
+        target = next;
+        this.exchange(target, proxy, method, content, sameService, origin);
+      }
+    } finally {
+      if (null != this.prepared) {
+        this.prepared.dispose();
+        this.prepared = null;
+      }
+      this.dispose();
+    }
+
+    return this.conn;
+  }
+
+  /**
+   * Sends the request to the given url, establishing a GSSContext with the
+   * server if it requires it.
+   * @param url HTTP address
+   * @param proxy optional proxy
+   * @param method HTTP method
+   * @param body optional message/payload
+   * @param challenged true to send the request with a token only when the
+   * server challenges it
+   * @param origin true if the url is on the host of the initial request: the
+   * credential may be delegated and the request properties are sent
+   */
+  private void exchange(final URL url, final Proxy proxy, final String method,
+      final SpnegoRequestBody body, final boolean challenged, final boolean origin)
+      throws GSSException, PrivilegedActionException, IOException {
+
     GSSContext context = null;
 
     try {
       byte[] data = null;
 
-      SpnegoHttpURLConnection.LOCK.lock();
-      try {
-        // work-around to GSSContext/AD timestamp vs sequence field replay bug
-        try {
-          Thread.sleep(31);
-        } catch (InterruptedException e) {
-          assert true;
+      if ((challenged || this.hasCookies(url)) && (null == body || body.isRepeatable())) {
+        // try the session of the server first
+        this.conn = this.openConnection(url, proxy, method, origin);
+        this.connected = true;
+        this.send(null, body);
+
+        if (this.conn.getResponseCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+          this.cntxtEstablished = false;
+          return;
         }
 
-        context = this.getGSSContext(url);
-        context.requestMutualAuth(true);
-        context.requestConf(true);
-        context.requestInteg(true);
-        context.requestReplayDet(true);
-        context.requestSequenceDet(true);
-        context.requestCredDeleg(this.reqCredDeleg);
-
-        data = context.initSecContext(EMPTY_BYTE, 0, 0);
-      } finally {
-        SpnegoHttpURLConnection.LOCK.unlock();
+        LOGGER.fine("Request without token rejected: " + url);
+        this.recycle();
       }
 
-      if (proxy == null) {
-        this.conn = (HttpURLConnection) url.openConnection();
+      if (null != this.prepared) {
+        // context and initial token generated ahead of time
+        context = this.prepared.getContext();
+        data = this.prepared.getToken();
+        this.prepared = null;
       } else {
-        this.conn = (HttpURLConnection) url.openConnection(proxy);
+        // work-around to GSSContext/AD timestamp vs sequence field replay bug
+        SpnegoTimestampGuard.await(url);
+
+        // the context is confined to this connection: no need to lock
+        context = this.getGSSContext(url);
+        data = initContext(context, this.reqCredDeleg && origin);
       }
+
+      this.conn = this.openConnection(url, proxy, method, origin);
       this.connected = true;
+      this.send(data, body);
 
-      final Set<String> keys = this.requestProperties.keySet();
-      for (final String key : keys) {
-        for (String value : this.requestProperties.get(key)) {
-          this.conn.addRequestProperty(key, value);
+      int legs = 1;
+      while (true) {
+        final SpnegoAuthScheme scheme =
+            SpnegoProvider.getAuthScheme(this.conn.getHeaderField(Constants.AUTHN_HEADER));
+
+        // app servers will not return a WWW-Authenticate on 302, (and 30x...?)
+        if (null == scheme) {
+          LOGGER.fine("SpnegoProvider.getAuthScheme(...) returned null.");
+          break;
         }
-      }
 
-      // TODO : re-factor to support (302) redirects
-      this.conn.setInstanceFollowRedirects(false);
-      this.conn.setRequestMethod(this.requestMethod);
+        if (!Constants.NEGOTIATE_HEADER.equalsIgnoreCase(scheme.getScheme())) {
+          throw new UnsupportedOperationException("Scheme NOT Supported: " + scheme.getScheme());
+        }
 
-      this.conn.setRequestProperty(Constants.AUTHZ_HEADER,
-          Constants.NEGOTIATE_HEADER + ' ' + Base64.encode(data));
+        data = scheme.getTokenArray();
+        data = context.initSecContext(data, 0, data.length);
 
-      if (null != dooutput && dooutput.size() > 0) {
-        this.conn.setDoOutput(true);
-        dooutput.writeTo(this.conn.getOutputStream());
-      }
+        if (null == data || context.isEstablished()) {
+          break;
+        }
 
-      this.conn.connect();
+        // the server requested a context loop
+        if (this.conn.getResponseCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+          LOGGER.warning("Server requested context loop on a final response: " +
+              this.conn.getResponseCode());
+          break;
+        }
+        if (null != body && !body.isRepeatable()) {
+          LOGGER.warning("Server requested context loop but the body cannot be sent again.");
+          break;
+        }
+        if (legs >= this.maxContextLegs) {
+          LOGGER.warning("Server requested context loop beyond " + this.maxContextLegs + " legs.");
+          break;
+        }
 
-      final SpnegoAuthScheme scheme =
-          SpnegoProvider.getAuthScheme(this.conn.getHeaderField(Constants.AUTHN_HEADER));
+        LOGGER.fine("Server requested context loop: " + data.length);
+        legs++;
 
-      // app servers will not return a WWW-Authenticate on 302, (and 30x...?)
-      if (null == scheme) {
-        LOGGER.fine("SpnegoProvider.getAuthScheme(...) returned null.");
+        // continue on the same (kept alive) TCP connection if possible
+        this.recycle();
+        this.conn = this.openConnection(url, proxy, method, origin);
+        this.send(data, body);
+      }
 
-      } else {
-        data = scheme.getToken();
-
-        if (Constants.NEGOTIATE_HEADER.equalsIgnoreCase(scheme.getScheme())) {
-          SpnegoHttpURLConnection.LOCK.lock();
-          try {
-            data = context.initSecContext(data, 0, data.length);
-          } finally {
-            SpnegoHttpURLConnection.LOCK.unlock();
-          }
+      this.cntxtEstablished = context.isEstablished();
+    } finally {
+      if (null != context) {
+        try {
+          context.dispose();
+        } catch (GSSException gsse) {
+          LOGGER.log(Level.WARNING, "call to dispose context failed.", gsse);
+        }
+      }
+    }
+  }
 
-          // TODO : support context loops where i>1
-          if (null != data) {
-            LOGGER.warning("Server requested context loop: " + data.length);
-          }
+  private static boolean isRedirect(final int code) {
+    return code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+        || code == HTTP_SEE_OTHER || code == HTTP_TEMPORARY_REDIRECT
+        || code == HTTP_PERMANENT_REDIRECT;
+  }
 
-        } else {
-          throw new UnsupportedOperationException("Scheme NOT Supported: " + scheme.getScheme());
+  /**
+   * Requests the security services of the client to the given context and
+   * returns its initial token.
+   * @param context a new context
+   * @param credDeleg true to request the credential to be delegated
+   * @return the initial token
+   * @throws org.ietf.jgss.GSSException
+   */
+  static byte[] initContext(final GSSContext context, final boolean credDeleg)
+      throws GSSException {
+    context.requestMutualAuth(true);
+    context.requestConf(true);
+    context.requestInteg(true);
+    context.requestReplayDet(true);
+    context.requestSequenceDet(true);
+    context.requestCredDeleg(credDeleg);
+
+    return context.initSecContext(EMPTY_BYTE, 0, 0);
+  }
+
+  /**
+   * Opens a new HTTP connection to the given url, with the request properties
+   * of this object if requested.
+   */
+  private HttpURLConnection openConnection(final URL url, final Proxy proxy, final String method,
+      final boolean withProperties) throws IOException {
+    final HttpURLConnection connection;
+    if (proxy == null) {
+      connection = (HttpURLConnection) url.openConnection();
+    } else {
+      connection = (HttpURLConnection) url.openConnection(proxy);
+    }
+
+    if (withProperties) {
+      final Set<String> keys = this.requestProperties.keySet();
+      for (final String key : keys) {
+        for (String value : this.requestProperties.get(key)) {
+          connection.addRequestProperty(key, value);
         }
+      }
+    }
 
-        this.cntxtEstablished = context.isEstablished();
+    if (null != this.cookies) {
+      final Map<String, List<String>> headers = this.cookies.get(toURI(url), NO_HEADERS);
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        for (String value : header.getValue()) {
+          connection.addRequestProperty(header.getKey(), value);
+        }
       }
-    } finally {
-      this.dispose(context);
     }
 
-    return this.conn;
+    // the redirects are followed by connect(), with a new token if needed
+    connection.setInstanceFollowRedirects(false);
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(this.connectTimeout);
+    connection.setReadTimeout(this.readTimeout);
+
+    return connection;
   }
 
   /**
-   * Logout the LoginContext instance, and call dispose() on GSSCredential
-   * if autoDisposeCreds is set to true, and call dispose on the passed-in
-   * GSSContext instance.
+   * Sends the request with the given SPNEGO token and the optional payload
+   * and waits for the response.
    */
-  private void dispose(final GSSContext context) {
-    if (null != context) {
+  private void send(final byte[] token, final SpnegoRequestBody body) throws IOException {
+    if (this.aborted) {
+      this.conn.disconnect();
+      throw new IOException("Connection aborted: " + this.conn.getURL());
+    }
+    if (null != token) {
+      this.conn.setRequestProperty(Constants.AUTHZ_HEADER,
+          Constants.NEGOTIATE_HEADER + ' ' + Base64.encode(token));
+    }
+
+    if (null != body) {
+      final long length = body.getLength();
+      // setFixedLengthStreamingMode(long) is not available before Java 7
+      if (length >= 0 && length <= Integer.MAX_VALUE) {
+        this.conn.setFixedLengthStreamingMode((int) length);
+      } else {
+        this.conn.setChunkedStreamingMode(SpnegoRequestBody.BUFFER_SIZE);
+      }
+      this.conn.setDoOutput(true);
+
+      final OutputStream out = this.conn.getOutputStream();
       try {
-        SpnegoHttpURLConnection.LOCK.lock();
-        try {
-          context.dispose();
-        } finally {
-          SpnegoHttpURLConnection.LOCK.unlock();
-        }
-      } catch (GSSException gsse) {
-        LOGGER.log(Level.WARNING, "call to dispose context failed.", gsse);
+        body.writeTo(out);
+      } finally {
+        out.close();
+      }
+    }
+
+    this.conn.connect();
+    this.storeCookies();
+  }
+
+  private void storeCookies() throws IOException {
+    if (null != this.cookies) {
+      this.cookies.put(toURI(this.conn.getURL()), this.conn.getHeaderFields());
+    }
+  }
+
+  /**
+   * Returns true if the cookie store has cookies for the given url.
+   */
+  private boolean hasCookies(final URL url) throws IOException {
+    if (null == this.cookies) {
+      return false;
+    }
+    for (List<String> values : this.cookies.get(toURI(url), NO_HEADERS).values()) {
+      if (!values.isEmpty()) {
+        return true;
       }
     }
+    return false;
+  }
 
+  private static URI toURI(final URL url) throws IOException {
+    try {
+      return url.toURI();
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid URL: " + url, e);
+    }
+  }
+
+  /**
+   * Logout the LoginContext instance, and call dispose() on GSSCredential
+   * if autoDisposeCreds is set to true. A shared credential is given back
+   * to the cache.
+   */
+  private void dispose() {
     if (null != this.credential && this.autoDisposeCreds) {
       try {
         this.credential.dispose();
@@ -433,6 +827,10 @@ public final class SpnegoHttpURLConnection {
       }
     }
 
+    if (null != this.lease) {
+      this.lease.release();
+    }
+
     if (null != this.loginContext) {
       try {
         this.loginContext.logout();
@@ -444,17 +842,96 @@ public final class SpnegoHttpURLConnection {
 
   /**
    * Logout and clear request properties.
+   * <p/>
+   * <p>
+   * If keep-alive is set, the rest of the response is read and the
+   * underlying TCP connection is left open to be reused by the next
+   * connection to the same server, unless the unread response is too large.
+   * </p>
    * @see java.net.HttpURLConnection#disconnect()
+   * @see #setKeepAlive(boolean)
    */
   public void disconnect() {
-    this.dispose(null);
+    if (null != this.prepared) {
+      this.prepared.dispose();
+      this.prepared = null;
+    }
+    this.dispose();
     this.requestProperties.clear();
     this.connected = false;
     if (null != this.conn) {
+      this.recycle();
+    }
+  }
+
+  /**
+   * Closes the underlying connection from another thread: the exchange or
+   * the read of the response in progress fails with an IOException, and no
+   * other request is sent.
+   */
+  void abort() {
+    this.aborted = true;
+    final HttpURLConnection current = this.conn;
+    if (null != current) {
+      current.disconnect();
+    }
+  }
+
+  /**
+   * Leaves the underlying TCP connection to the JDK to be reused if
+   * keep-alive is set and the exchange is complete, else closes it.
+   */
+  private void recycle() {
+    if (!this.keepAlive || !this.release()) {
       this.conn.disconnect();
     }
   }
 
+  /**
+   * Reads and closes the response stream so that the JDK may reuse the
+   * underlying TCP connection.
+   * @return false if the response could not be fully read
+   */
+  private boolean release() {
+    final InputStream stream = getResponseStream();
+    if (null == stream) {
+      return true;
+    }
+
+    try {
+      final byte[] buffer = new byte[4096];
+      int drained = 0;
+      int read = stream.read(buffer);
+      while (read >= 0 && drained <= MAX_DRAIN) {
+        drained += read;
+        read = stream.read(buffer);
+      }
+      return read < 0;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "response not fully read.", e);
+      return false;
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException ioe) {
+        assert true;
+      }
+    }
+  }
+
+  /**
+   * Returns the stream of the response body, whether the response is an
+   * error or not.
+   * @return the response stream or null if there is no body
+   */
+  InputStream getResponseStream() {
+    try {
+      return this.conn.getInputStream();
+    } catch (IOException e) {
+      return this.conn.getErrorStream();
+    }
+  }
+
   /**
    * Returns true if GSSContext has been established.
    * @return true if GSSContext has been established, false otherwise.
@@ -586,6 +1063,102 @@ public final class SpnegoHttpURLConnection {
     return this.conn.getInputStream();
   }
 
+  /**
+   * Transfers the response body to the given channel without putting it on
+   * the heap: the body is copied through a direct buffer, or by the file
+   * channel itself when the target is a FileChannel.
+   * The target is not closed.
+   * @param target channel to write the response body to
+   * @param listener optional listener notified of the progress
+   * @return number of bytes transferred
+   * @throws java.io.IOException
+   * @see #transferTo(java.io.File, TransferListener)
+   */
+  public long transferTo(final WritableByteChannel target, final TransferListener listener)
+      throws IOException {
+    assertConnected();
+
+    if (null == target) {
+      throw new IllegalArgumentException("target parameter is null");
+    }
+
+    final long length = getContentLength();
+    final InputStream in = this.conn.getInputStream();
+    final ReadableByteChannel source = Channels.newChannel(in);
+    long transferred = 0;
+    try {
+      if (target instanceof FileChannel) {
+        final FileChannel file = (FileChannel) target;
+        long position = file.position();
+        long count = file.transferFrom(source, position, TRANSFER_SIZE);
+        while (count > 0) {
+          position += count;
+          transferred += count;
+          notify(listener, transferred, length);
+          count = file.transferFrom(source, position, TRANSFER_SIZE);
+        }
+        file.position(position);
+      } else {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+        while (source.read(buffer) >= 0) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            transferred += target.write(buffer);
+          }
+          buffer.clear();
+          notify(listener, transferred, length);
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return transferred;
+  }
+
+  /**
+   * Transfers the response body to the given file, replacing its content.
+   * @param file file to write the response body to
+   * @param listener optional listener notified of the progress
+   * @return number of bytes transferred
+   * @throws java.io.IOException
+   * @see #transferTo(java.nio.channels.WritableByteChannel, TransferListener)
+   */
+  public long transferTo(final File file, final TransferListener listener) throws IOException {
+    if (null == file) {
+      throw new IllegalArgumentException("file parameter is null");
+    }
+
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      return transferTo(out.getChannel(), listener);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the Content-Length of the response, -1 if unknown.
+   */
+  private long getContentLength() {
+    final String value = this.conn.getHeaderField("Content-Length");
+    if (null != value) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.fine("invalid Content-Length: " + value);
+      }
+    }
+    return -1;
+  }
+
+  private static void notify(final TransferListener listener, final long transferred,
+      final long length) {
+    if (null != listener) {
+      listener.transferred(transferred, length);
+    }
+  }
+
   /**
    * Returns an output stream that writes to this open connection.
    * @return output stream that writes to this connections
@@ -632,6 +1205,151 @@ public final class SpnegoHttpURLConnection {
     this.reqCredDeleg = requestDelegation;
   }
 
+  /**
+   * Keeps the underlying TCP connection alive on disconnect so that it can be
+   * reused by the next connection to the same server instead of paying for a
+   * new TCP (and TLS) setup.
+   * <p/>
+   * <p>
+   * The connections are pooled by the keep-alive cache of the JDK: the
+   * maximum number of idle connections per server is given by the
+   * <code>http.maxConnections</code> System property (default 5) and an idle
+   * connection is closed after the timeout advertised by the server in its
+   * Keep-Alive header (5 seconds by default).
+   * </p>
+   * @param keepAlive true to keep the connection alive
+   */
+  public void setKeepAlive(final boolean keepAlive) {
+    assertNotConnected();
+
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Sets the maximum number of request/response legs used to establish the
+   * GSSContext. When the server answers 401 with a continuation token, the
+   * next token is sent in a new request (on the same TCP connection if it
+   * can be kept alive), with the same payload, until the context is
+   * established or this limit is reached.
+   * @param legs maximum number of legs (at least 1)
+   */
+  public void setMaxContextLegs(final int legs) {
+    assertNotConnected();
+
+    if (legs < 1) {
+      throw new IllegalArgumentException("legs must be at least 1: " + legs);
+    }
+    this.maxContextLegs = legs;
+  }
+
+  /**
+   * Sets the timeout to open the TCP connection.
+   * @param timeout timeout in milliseconds, 0 for none
+   * @see java.net.URLConnection#setConnectTimeout(int)
+   */
+  public void setConnectTimeout(final int timeout) {
+    assertNotConnected();
+
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+    }
+    this.connectTimeout = timeout;
+  }
+
+  /**
+   * Sets the timeout to read from the TCP connection.
+   * @param timeout timeout in milliseconds, 0 for none
+   * @see java.net.URLConnection#setReadTimeout(int)
+   */
+  public void setReadTimeout(final int timeout) {
+    assertNotConnected();
+
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+    }
+    this.readTimeout = timeout;
+  }
+
+  /**
+   * Sets the cookie store of this connection. The cookies set by the server
+   * are stored and sent back to it. When the store has cookies for the URL,
+   * typically the session cookie issued after a previous authentication, the
+   * request is first sent with the cookies only and the Negotiate token is
+   * sent only if the server challenges it again (a request with a body that
+   * is not repeatable is always sent with the token). When the cookies are
+   * accepted, no context is established: see {@link #isContextEstablished()}.
+   * <p/>
+   * <p>
+   * A store may be shared by the connections of several threads:
+   * {@link java.net.CookieManager} is thread-safe.
+   * </p>
+   * @param cookies the cookie store, or null to ignore the cookies
+   */
+  public void setCookieHandler(final CookieHandler cookies) {
+    assertNotConnected();
+
+    this.cookies = cookies;
+  }
+
+  /**
+   * Sets the context and its initial token to use instead of creating them
+   * on connect. They must have been created for the server of the URL and
+   * the delegation flag of this connection.
+   * @param token context and initial token generated ahead of time
+   */
+  void setPreparedToken(final SpnegoTokenPrefetcher.Token token) {
+    assertNotConnected();
+
+    this.prepared = token;
+  }
+
+  /**
+   * Sets whether a request with a body is preceded by a HEAD request to the
+   * same url, so that the body is sent only once the server has accepted the
+   * credential. Default is false.
+   * <p/>
+   * <p>
+   * When the server rejects the HEAD request with a 401, for instance because
+   * of a stale ticket, connect() returns that response and the body is never
+   * sent. Otherwise the request is sent as usual, with a new token (the
+   * service ticket obtained for the HEAD request is reused). The preflight
+   * costs a round trip and a context, so it is meant for large or
+   * non-repeatable bodies. The server must authenticate HEAD requests like
+   * the other methods.
+   * </p>
+   * @param preflight true to authenticate before sending the body
+   */
+  public void setPreflight(final boolean preflight) {
+    assertNotConnected();
+
+    this.preflight = preflight;
+  }
+
+  /**
+   * Sets the maximum number of redirects (301, 302, 303, 307 and 308)
+   * followed by connect(). Default is 0: the redirect response is returned.
+   * <p/>
+   * <p>
+   * A redirect to the same host is first sent without a token (but with the
+   * cookies if a cookie store is set) and a new context is established only
+   * if the server challenges it. A redirect to another host establishes a
+   * new context with the same credential, but without delegating it and
+   * without the request properties set on this connection. A redirect from
+   * https to http is not followed. A 303, or a 301/302 of a POST, is
+   * followed with a GET without body; a 307/308 is followed with the same
+   * method and body, if the body is repeatable.
+   * </p>
+   * @param max maximum number of redirects to follow
+   */
+  public void setMaxRedirects(final int max) {
+    assertNotConnected();
+
+    if (max < 0) {
+      throw new IllegalArgumentException("max must not be negative: " + max);
+    }
+    this.maxRedirects = max;
+  }
+
   /**
    * May override the default GET method.
    * @param method
@@ -642,4 +1360,18 @@ public final class SpnegoHttpURLConnection {
 
     this.requestMethod = method;
   }
+
+  /**
+   * Listener of the progress of a response body transfer.
+   * @see SpnegoHttpURLConnection#transferTo(java.io.File, TransferListener)
+   */
+  public interface TransferListener {
+
+    /**
+     * Called after each chunk of the response body has been transferred.
+     * @param transferred number of bytes transferred so far
+     * @param length Content-Length of the response, -1 if unknown
+     */
+    void transferred(long transferred, long length);
+  }
 }
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reader of a multipart/related response that spools the attachments to disk.
+ * <p/>
+ * <p>
+ * The root part (the one named by the <code>start</code> parameter of the
+ * Content-Type, or else the first one) is kept in memory. Every other part sent
+ * with a binary, 8bit or 7bit Content-Transfer-Encoding is copied to its own
+ * temporary file as it is read, so that its size does not matter. A part sent
+ * base64 or quoted-printable encoded is kept in memory, to be decoded by SAAJ.
+ * </p>
+ * @see SpnegoSOAPConnection#setSpoolDirectory(java.io.File)
+ */
+final class SpnegoMultipartSpool {
+
+  /**
+   * A part of the multipart content.
+   */
+  static final class Part {
+
+    /**
+     * MIME headers of the part, as name and value pairs.
+     */
+    private final List<String[]> headers = new ArrayList<String[]>();
+
+    /**
+     * Content of the part kept in memory (null if the content is spooled).
+     */
+    private byte[] content = null;
+
+    /**
+     * File of the spooled content (null if the content is kept in memory).
+     */
+    private File file = null;
+
+    List<String[]> getHeaders() {
+      return this.headers;
+    }
+
+    /**
+     * Returns the value of the first header with the given name, or null.
+     */
+    String getHeader(final String name) {
+      for (final String[] header : this.headers) {
+        if (header[0].equalsIgnoreCase(name)) {
+          return header[1];
+        }
+      }
+      return null;
+    }
+
+    byte[] getContent() {
+      return this.content;
+    }
+
+    File getFile() {
+      return this.file;
+    }
+  }
+
+  private SpnegoMultipartSpool() {
+    // default private
+  }
+
+  /**
+   * Returns true if the given Content-Type is a multipart one.
+   */
+  static boolean isMultipart(final String contentType) {
+    return null != contentType
+        && contentType.trim().toLowerCase(Locale.ENGLISH).startsWith("multipart/");
+  }
+
+  /**
+   * Returns the value of the given parameter of the given Content-Type, without
+   * quotes, or null if the parameter is absent.
+   */
+  static String getParameter(final String contentType, final String name) {
+    int index = contentType.indexOf(';');
+    while (index >= 0 && index < contentType.length()) {
+      final int equal = contentType.indexOf('=', index);
+      if (equal < 0) {
+        return null;
+      }
+      final String key = contentType.substring(index + 1, equal).trim();
+      int end;
+      String value;
+      if (equal + 1 < contentType.length() && contentType.charAt(equal + 1) == '"') {
+        end = contentType.indexOf('"', equal + 2);
+        if (end < 0) {
+          end = contentType.length();
+        }
+        value = contentType.substring(equal + 2, end);
+        end = contentType.indexOf(';', end);
+      } else {
+        end = contentType.indexOf(';', equal);
+        value = contentType.substring(equal + 1, end < 0 ? contentType.length() : end).trim();
+      }
+      if (key.equalsIgnoreCase(name)) {
+        return value;
+      }
+      index = end;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the parts of the given multipart content, root part first. The
+   * attachments are spooled to the given directory. If the content cannot be
+   * read, the files already spooled are deleted.
+   * @param in the multipart content, not closed
+   * @param contentType the Content-Type of the content
+   * @param directory directory of the spooled attachments
+   * @return the parts, root part first
+   * @throws IOException if the content is not a valid multipart one
+   */
+  static List<Part> read(final InputStream in, final String contentType, final File directory)
+      throws IOException {
+
+    final String boundary = getParameter(contentType, "boundary");
+    if (null == boundary || boundary.isEmpty()) {
+      throw new IOException("No boundary in the Content-Type " + contentType);
+    }
+    final String start = contentId(getParameter(contentType, "start"));
+    final byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+    final List<Part> parts = new ArrayList<Part>();
+    boolean done = false;
+    try {
+      // the preamble: the first delimiter may not be preceded by a line break
+      if (!skip(in, delimiter, 2)) {
+        throw new IOException("No part in the multipart content");
+      }
+      while (!closing(in)) {
+        final Part part = new Part();
+        readHeaders(in, part);
+        final boolean root = null == start ? parts.isEmpty()
+            : start.equals(contentId(part.getHeader("Content-ID")));
+        if (root) {
+          parts.add(0, part);
+        } else {
+          parts.add(part);
+        }
+        if (root || !isBinary(part.getHeader("Content-Transfer-Encoding"))) {
+          final ByteArrayOutputStream out = new ByteArrayOutputStream();
+          copyPart(in, out, delimiter);
+          part.content = out.toByteArray();
+        } else {
+          part.file = File.createTempFile("spnego-soap-", ".tmp", directory);
+          final OutputStream out = new BufferedOutputStream(new FileOutputStream(part.file));
+          try {
+            copyPart(in, out, delimiter);
+          } finally {
+            out.close();
+          }
+        }
+      }
+      if (parts.isEmpty()
+          || (null != start && !start.equals(contentId(parts.get(0).getHeader("Content-ID"))))) {
+        throw new IOException("No root part in the multipart content");
+      }
+      done = true;
+      return parts;
+    } finally {
+      if (!done) {
+        delete(parts);
+      }
+    }
+  }
+
+  /**
+   * Deletes the spooled files of the given parts.
+   */
+  static void delete(final List<Part> parts) {
+    for (final Part part : parts) {
+      if (null != part.file && !part.file.delete()) {
+        part.file.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Returns the given Content-ID without its angle brackets.
+   */
+  private static String contentId(final String id) {
+    if (null != id && id.length() > 1 && id.charAt(0) == '<' && id.endsWith(">")) {
+      return id.substring(1, id.length() - 1);
+    }
+    return id;
+  }
+
+  private static boolean isBinary(final String encoding) {
+    return null == encoding || "binary".equalsIgnoreCase(encoding.trim())
+        || "8bit".equalsIgnoreCase(encoding.trim()) || "7bit".equalsIgnoreCase(encoding.trim());
+  }
+
+  private static void copyPart(final InputStream in, final OutputStream out,
+      final byte[] delimiter) throws IOException {
+    if (!copy(in, out, delimiter, 0)) {
+      throw new IOException("Truncated multipart content");
+    }
+  }
+
+  /**
+   * Skips the content up to and including the given delimiter.
+   */
+  private static boolean skip(final InputStream in, final byte[] delimiter, final int matched)
+      throws IOException {
+
+    return copy(in, null, delimiter, matched);
+  }
+
+  /**
+   * Copies the content up to the given delimiter to the given stream (null to
+   * skip it), and consumes the delimiter. Returns false if the end of the
+   * content is reached first. As the delimiter starts with the only CR it
+   * holds, a mismatch never hides the start of another delimiter but at the
+   * current byte.
+   */
+  private static boolean copy(final InputStream in, final OutputStream out,
+      final byte[] delimiter, final int matched) throws IOException {
+
+    int count = matched;
+    int b = in.read();
+    while (b >= 0) {
+      if (b == delimiter[count]) {
+        count++;
+        if (count == delimiter.length) {
+          return true;
+        }
+        b = in.read();
+      } else if (count > 0) {
+        if (null != out) {
+          out.write(delimiter, 0, count);
+        }
+        count = 0;
+      } else {
+        if (null != out) {
+          out.write(b);
+        }
+        b = in.read();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the rest of the line of a delimiter and returns true if it is the
+   * closing delimiter.
+   */
+  private static boolean closing(final InputStream in) throws IOException {
+    final String line = readLine(in);
+    if (null == line) {
+      throw new IOException("Truncated multipart content");
+    }
+    return line.startsWith("--");
+  }
+
+  private static void readHeaders(final InputStream in, final Part part) throws IOException {
+    String line = readLine(in);
+    while (null != line && !line.isEmpty()) {
+      final int colon = line.indexOf(':');
+      if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && !part.headers.isEmpty()) {
+        // folded header
+        final String[] header = part.headers.get(part.headers.size() - 1);
+        header[1] = header[1] + ' ' + line.trim();
+      } else if (colon > 0) {
+        part.headers.add(new String[] {line.substring(0, colon).trim(),
+            line.substring(colon + 1).trim()});
+      }
+      line = readLine(in);
+    }
+    if (null == line) {
+      throw new IOException("Truncated multipart content");
+    }
+  }
+
+  /**
+   * Reads a line ended by CRLF or LF, or returns null at the end of the content.
+   */
+  private static String readLine(final InputStream in) throws IOException {
+    final StringBuilder line = new StringBuilder();
+    int b = in.read();
+    if (b < 0) {
+      return null;
+    }
+    while (b >= 0 && b != '\n') {
+      if (b != '\r') {
+        line.append((char) b);
+      }
+      b = in.read();
+    }
+    return line.toString();
+  }
+}
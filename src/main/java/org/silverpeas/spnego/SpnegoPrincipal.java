@@ -18,6 +18,7 @@
 
 package org.silverpeas.spnego;
 
+import org.ietf.jgss.GSSContext;
 import org.ietf.jgss.GSSCredential;
 
 import javax.security.auth.kerberos.KerberosPrincipal;
@@ -41,6 +42,8 @@ public final class SpnegoPrincipal implements Principal {
 
   private final transient GSSCredential delegatedCred;
 
+  private final transient int lifetime;
+
   /**
    * Constructs a SpnegoPrincipal from the provided String input.
    * @param name the principal name
@@ -48,6 +51,7 @@ public final class SpnegoPrincipal implements Principal {
   public SpnegoPrincipal(final String name) {
     this.kerberosPrincipal = new KerberosPrincipal(name);
     this.delegatedCred = null;
+    this.lifetime = GSSContext.INDEFINITE_LIFETIME;
   }
 
   /**
@@ -59,6 +63,7 @@ public final class SpnegoPrincipal implements Principal {
   public SpnegoPrincipal(final String name, final int nameType) {
     this.kerberosPrincipal = new KerberosPrincipal(name, nameType);
     this.delegatedCred = null;
+    this.lifetime = GSSContext.INDEFINITE_LIFETIME;
   }
 
   /**
@@ -70,8 +75,24 @@ public final class SpnegoPrincipal implements Principal {
    */
   public SpnegoPrincipal(final String name, final int nameType, final GSSCredential delegCred) {
 
+    this(name, nameType, delegCred, GSSContext.INDEFINITE_LIFETIME);
+  }
+
+  /**
+   * Constructs a SpnegoPrincipal from the provided String input, name type
+   * input and the remaining lifetime of the security context it was
+   * authenticated with.
+   * @param name the principal name
+   * @param nameType the name type of the principal
+   * @param delegCred this principal's delegated credential (if any)
+   * @param lifetime remaining lifetime in seconds of the security context
+   */
+  SpnegoPrincipal(final String name, final int nameType, final GSSCredential delegCred,
+      final int lifetime) {
+
     this.kerberosPrincipal = new KerberosPrincipal(name, nameType);
     this.delegatedCred = delegCred;
+    this.lifetime = lifetime;
   }
 
   /**
@@ -82,6 +103,15 @@ public final class SpnegoPrincipal implements Principal {
     return this.delegatedCred;
   }
 
+  /**
+   * Returns the remaining lifetime in seconds of the security context this
+   * Principal was authenticated with, at the time of the authentication.
+   * @return lifetime in seconds or GSSContext.INDEFINITE_LIFETIME if unknown
+   */
+  int getLifetime() {
+    return this.lifetime;
+  }
+
   @Override
   public String getName() {
     return this.kerberosPrincipal.getName();
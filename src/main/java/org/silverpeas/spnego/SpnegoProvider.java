@@ -111,7 +111,7 @@ public final class SpnegoProvider {
     final SpnegoAuthScheme scheme =
         SpnegoProvider.getAuthScheme(req.getHeader(Constants.AUTHZ_HEADER));
 
-    if (null == scheme || scheme.getToken().length == 0) {
+    if (null == scheme || scheme.getTokenLength() == 0) {
       LOGGER.finer("Header Token was NULL");
       resp.setHeader(Constants.AUTHN_HEADER, Constants.NEGOTIATE_HEADER);
 
@@ -256,14 +256,22 @@ public final class SpnegoProvider {
 
   /**
    * Returns the {@link org.ietf.jgss.GSSName} constructed out of the passed-in
-   * URL object.
+   * URL object. The names are cached by host.
    * @param url HTTP address of server
    * @return GSSName of URL.
    * @throws org.ietf.jgss.GSSException
+   * @see SpnegoServerNameCache
    */
   static GSSName getServerName(final URL url) throws GSSException {
-    return MANAGER.createName("HTTP@" + url.getHost(), GSSName.NT_HOSTBASED_SERVICE,
-        SpnegoProvider.SPNEGO_OID);
+    return SpnegoServerNameCache.get(url.getHost());
+  }
+
+  /**
+   * Removes the cached service names of the servers, for instance after a
+   * DNS or SPN change.
+   */
+  public static void clearServerNameCache() {
+    SpnegoServerNameCache.clear();
   }
 
   /**
@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * In-memory replay cache of the Kerberos authenticators accepted by the server.
+ * <p/>
+ * <p>
+ * Each accepted token is recorded by the SHA-256 digest of the encrypted authenticator
+ * of its Kerberos AP-REQ, so that the same AP-REQ wrapped in another SPNEGO NegTokenInit
+ * is still detected as a replay. A token whose AP-REQ cannot be decoded is recorded by
+ * the digest of the whole token. The digests are kept in a concurrent hash map, split
+ * in shards, until the clock skew window has elapsed: a Kerberos authenticator older
+ * than that window is rejected by the acceptor anyway. Inserts are lock-free. Expired
+ * digests are purged by a time wheel of one slot per second: the thread that moves the
+ * wheel forward drains the slots whose second has elapsed.
+ * </p>
+ * <p/>
+ * <p>
+ * The cache is checked before the token is given to the acceptor, so that a replay
+ * costs no GSS work. The number of recorded tokens is bounded: when the cache is full
+ * even after a purge, the tokens closest to the end of their clock skew window are
+ * forgotten first, so that logins are never rejected for lack of room.
+ * </p>
+ * @see SpnegoHttpFilter.Constants#REPLAY_CACHE
+ */
+final class SpnegoReplayCache {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * DER encoding of the SPNEGO mechanism OID 1.3.6.1.5.5.2.
+   */
+  private static final byte[] SPNEGO_OID = {0x2b, 0x06, 0x01, 0x05, 0x05, 0x02};
+
+  /**
+   * DER encoding of the Kerberos V5 mechanism OID 1.2.840.113554.1.2.2.
+   */
+  private static final byte[] KRB5_OID =
+      {0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+  /**
+   * DER encoding of the Microsoft Kerberos V5 mechanism OID 1.2.840.48018.1.2.2.
+   */
+  private static final byte[] MS_KRB5_OID =
+      {0x2a, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+  /**
+   * Digest of the recorded tokens with their expiry time in milliseconds.
+   */
+  private final transient ConcurrentMap<ByteBuffer, Long> digests;
+
+  /**
+   * Time wheel: digests to purge, by expiry second.
+   */
+  private final transient List<Queue<ByteBuffer>> wheel;
+
+  /**
+   * Last second for which the wheel has been purged.
+   */
+  private final transient AtomicLong purged;
+
+  private final transient AtomicInteger size = new AtomicInteger(0);
+
+  /**
+   * Clock skew window in milliseconds.
+   */
+  private final transient long skew;
+
+  private final transient int maxSize;
+
+  /**
+   * @param skewSeconds the clock skew window in seconds
+   * @param maxSize maximum number of recorded tokens
+   */
+  SpnegoReplayCache(final int skewSeconds, final int maxSize) {
+    if (skewSeconds <= 0 || maxSize <= 0) {
+      throw new IllegalArgumentException(
+          "Replay cache skew and size must be positive: " + skewSeconds + ", " + maxSize);
+    }
+
+    this.skew = skewSeconds * 1000L;
+    this.maxSize = maxSize;
+    this.digests = new ConcurrentHashMap<ByteBuffer, Long>(1024, 0.75f,
+        Runtime.getRuntime().availableProcessors() * 4);
+    this.wheel = new ArrayList<Queue<ByteBuffer>>(skewSeconds + 2);
+    for (int i = 0; i < skewSeconds + 2; i++) {
+      this.wheel.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+    this.purged = new AtomicLong(System.currentTimeMillis() / 1000L);
+  }
+
+  /**
+   * Records the given token.
+   * @param token the SPNEGO token received from the client
+   * @return false if the token has already been recorded within the clock skew
+   * window (replay)
+   */
+  boolean add(final byte[] token) {
+    final long now = System.currentTimeMillis();
+    purge(now);
+
+    final ByteBuffer digest = digest(token);
+    final Long expiry = now + this.skew;
+    final Long previous = this.digests.get(digest);
+    if (null != previous) {
+      if (previous > now || !this.digests.replace(digest, previous, expiry)) {
+        LOGGER.warning("Replayed token detected.");
+        return false;
+      }
+    } else {
+      // the slot is reserved before the insert so that concurrent inserts cannot
+      // overflow the cache
+      while (this.size.incrementAndGet() > this.maxSize) {
+        this.size.decrementAndGet();
+        evict(now);
+      }
+      if (null != this.digests.putIfAbsent(digest, expiry)) {
+        this.size.decrementAndGet();
+        LOGGER.warning("Replayed token detected.");
+        return false;
+      }
+    }
+
+    this.wheel.get(slot(expiry / 1000L)).offer(digest);
+    return true;
+  }
+
+  /**
+   * Returns the number of recorded tokens.
+   * @return number of tokens within the clock skew window
+   */
+  int size() {
+    return this.size.get();
+  }
+
+  /**
+   * Moves the wheel forward up to the given time, removing the expired digests.
+   */
+  private void purge(final long now) {
+    final long second = now / 1000L;
+    long last = this.purged.get();
+    while (last < second) {
+      if (this.purged.compareAndSet(last, second)) {
+        final long from = Math.max(last, second - this.wheel.size() + 1);
+        for (long s = from; s < second; s++) {
+          drain(this.wheel.get(slot(s)), now);
+        }
+        return;
+      }
+      last = this.purged.get();
+    }
+  }
+
+  /**
+   * Removes the digests of the first non empty slot, the ones closest to their expiry,
+   * whether they have expired or not.
+   */
+  private void evict(final long now) {
+    final long second = now / 1000L;
+    for (long s = second; s < second + this.wheel.size(); s++) {
+      final Queue<ByteBuffer> slot = this.wheel.get(slot(s));
+      if (!slot.isEmpty()) {
+        LOGGER.warning("Replay cache full, evicting tokens before their expiry: " +
+            this.maxSize);
+        for (ByteBuffer digest = slot.poll(); null != digest; digest = slot.poll()) {
+          if (null != this.digests.remove(digest)) {
+            this.size.decrementAndGet();
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the expired digests of a slot. The digests expiring in a later turn of the
+   * wheel are put back in the slot.
+   */
+  private void drain(final Queue<ByteBuffer> slot, final long now) {
+    for (int i = slot.size(); i > 0; i--) {
+      final ByteBuffer digest = slot.poll();
+      if (null == digest) {
+        return;
+      }
+      final Long expiry = this.digests.get(digest);
+      if (null != expiry && expiry <= now) {
+        if (this.digests.remove(digest, expiry)) {
+          this.size.decrementAndGet();
+        }
+      } else if (null != expiry) {
+        slot.offer(digest);
+      }
+    }
+  }
+
+  private int slot(final long second) {
+    return (int) (second % this.wheel.size());
+  }
+
+  private static ByteBuffer digest(final byte[] token) {
+    final int[] authenticator = authenticator(token);
+    try {
+      final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      if (null == authenticator) {
+        sha.update(token);
+      } else {
+        sha.update(token, authenticator[0], authenticator[1] - authenticator[0]);
+      }
+      return ByteBuffer.wrap(sha.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Locates the encrypted authenticator of the Kerberos AP-REQ carried by the given
+   * token, either a Kerberos initial context token or a SPNEGO NegTokenInit wrapping one.
+   * @param token the token received from the client
+   * @return start and end offsets of the authenticator cipher, null if not found
+   */
+  static int[] authenticator(final byte[] token) {
+    // InitialContextToken ::= [APPLICATION 0] { thisMech OID, innerContextToken }
+    int[] gss = element(token, new int[] {0, token.length}, 0x60);
+    int[] mech = element(token, gss, 0x06);
+    if (matches(token, mech, SPNEGO_OID)) {
+      // NegotiationToken ::= [0] NegTokenInit ::= SEQUENCE { ... [2] mechToken OCTET STRING }
+      final int[] init = element(token, after(gss, mech, 0), 0xa0);
+      final int[] mechToken = element(token, child(token, element(token, init, 0x30), 0xa2), 0x04);
+      gss = element(token, mechToken, 0x60);
+      mech = element(token, gss, 0x06);
+    }
+    if (!matches(token, mech, KRB5_OID) && !matches(token, mech, MS_KRB5_OID)) {
+      return null;
+    }
+
+    // innerContextToken ::= TOK_ID (2 bytes) AP-REQ
+    // AP-REQ ::= [APPLICATION 14] SEQUENCE { ... [4] authenticator EncryptedData }
+    // EncryptedData ::= SEQUENCE { [0] etype, [1] kvno OPTIONAL, [2] cipher OCTET STRING }
+    final int[] apReq = element(token, element(token, after(gss, mech, 2), 0x6e), 0x30);
+    final int[] encrypted = element(token, child(token, apReq, 0xa4), 0x30);
+    return element(token, child(token, encrypted, 0xa2), 0x04);
+  }
+
+  /**
+   * Returns the content of the DER element of the given tag at the start of the range.
+   * @return start and end offsets of the content, null if not found
+   */
+  private static int[] element(final byte[] der, final int[] range, final int tag) {
+    if (null == range || range[1] - range[0] < 2 || (der[range[0]] & 0xff) != tag) {
+      return null;
+    }
+    int start = range[0] + 2;
+    int length = der[range[0] + 1] & 0xff;
+    if (length == 0x80) {
+      // indefinite length: not DER
+      return null;
+    } else if (length > 0x80) {
+      final int bytes = length & 0x7f;
+      if (bytes > 3 || start + bytes > range[1]) {
+        return null;
+      }
+      length = 0;
+      for (int i = 0; i < bytes; i++) {
+        length = (length << 8) | (der[start++] & 0xff);
+      }
+    }
+    if (length > range[1] - start) {
+      return null;
+    }
+    return new int[] {start, start + length};
+  }
+
+  /**
+   * Returns the content of the first child element of the given tag.
+   * @return start and end offsets of the content, null if not found
+   */
+  private static int[] child(final byte[] der, final int[] parent, final int tag) {
+    if (null == parent) {
+      return null;
+    }
+    final int[] range = {parent[0], parent[1]};
+    while (range[0] < range[1]) {
+      final int current = der[range[0]] & 0xff;
+      final int[] content = element(der, range, current);
+      if (null == content) {
+        return null;
+      }
+      if (current == tag) {
+        return content;
+      }
+      range[0] = content[1];
+    }
+    return null;
+  }
+
+  /**
+   * Returns the rest of the parent range after the given element and skipped bytes.
+   */
+  private static int[] after(final int[] parent, final int[] element, final int skip) {
+    if (null == parent || null == element || element[1] + skip > parent[1]) {
+      return null;
+    }
+    return new int[] {element[1] + skip, parent[1]};
+  }
+
+  private static boolean matches(final byte[] der, final int[] range, final byte[] value) {
+    if (null == range || range[1] - range[0] != value.length) {
+      return false;
+    }
+    for (int i = 0; i < value.length; i++) {
+      if (der[range[0] + i] != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
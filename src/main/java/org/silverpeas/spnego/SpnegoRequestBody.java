@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Message/payload of a request, streamed to the server.
+ * <p/>
+ * <p>
+ * The body is written straight to the socket, in fixed-length streaming mode when its
+ * length is known and in chunked streaming mode otherwise, so the memory used does not
+ * depend on the size of the payload:
+ * <pre>
+ *  spnego.setRequestMethod("POST");
+ *  spnego.connect(url, SpnegoRequestBody.of(new File("archive.zip")));
+ * </pre>
+ * </p>
+ * <p/>
+ * <p>
+ * A body read from a stream or a channel can be sent only once. When the server requests
+ * a context loop, only a repeatable body (byte array or file) can be sent again.
+ * </p>
+ * @see SpnegoHttpURLConnection#connect(java.net.URL, java.net.Proxy, SpnegoRequestBody)
+ */
+public abstract class SpnegoRequestBody {
+
+  /**
+   * Size of the buffer used to copy a stream or a channel.
+   */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  SpnegoRequestBody() {
+    // only the bodies of this package
+  }
+
+  /**
+   * Returns a body of the given bytes (not copied).
+   * @param payload message/payload to send to server
+   * @return a repeatable body
+   */
+  public static SpnegoRequestBody of(final byte[] payload) {
+    if (null == payload) {
+      throw new IllegalArgumentException("payload parameter is null");
+    }
+    return new SpnegoRequestBody() {
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+
+      @Override
+      public long getLength() {
+        return payload.length;
+      }
+
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        out.write(payload);
+      }
+    };
+  }
+
+  /**
+   * Returns a body of the content of the given buffer.
+   * @param payload message/payload to send to server
+   * @return a repeatable body
+   */
+  public static SpnegoRequestBody of(final ByteArrayOutputStream payload) {
+    if (null == payload) {
+      throw new IllegalArgumentException("payload parameter is null");
+    }
+    return new SpnegoRequestBody() {
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+
+      @Override
+      public long getLength() {
+        return payload.size();
+      }
+
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        payload.writeTo(out);
+      }
+    };
+  }
+
+  /**
+   * Returns a body read from the given stream. The stream is not closed.
+   * @param in message/payload to send to server
+   * @param length number of bytes to send, or -1 if unknown (chunked)
+   * @return a body that can be sent only once
+   */
+  public static SpnegoRequestBody of(final InputStream in, final long length) {
+    if (null == in) {
+      throw new IllegalArgumentException("in parameter is null");
+    }
+    return new SpnegoRequestBody() {
+      @Override
+      public boolean isRepeatable() {
+        return false;
+      }
+
+      @Override
+      public long getLength() {
+        return length;
+      }
+
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        copy(in, out, length);
+      }
+    };
+  }
+
+  /**
+   * Returns a body read from the given channel. The channel is not closed.
+   * @param in message/payload to send to server
+   * @param length number of bytes to send, or -1 if unknown (chunked)
+   * @return a body that can be sent only once
+   */
+  public static SpnegoRequestBody of(final ReadableByteChannel in, final long length) {
+    if (null == in) {
+      throw new IllegalArgumentException("in parameter is null");
+    }
+    return new SpnegoRequestBody() {
+      @Override
+      public boolean isRepeatable() {
+        return false;
+      }
+
+      @Override
+      public long getLength() {
+        return length;
+      }
+
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(out);
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long remaining = (length < 0) ? Long.MAX_VALUE : length;
+        while (remaining > 0) {
+          buffer.clear();
+          if (remaining < buffer.capacity()) {
+            buffer.limit((int) remaining);
+          }
+          final int read = in.read(buffer);
+          if (read < 0) {
+            break;
+          }
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          remaining -= read;
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a body of the content of the given file. The file is read each time the
+   * body is sent.
+   * @param file message/payload to send to server
+   * @return a repeatable body
+   */
+  public static SpnegoRequestBody of(final File file) {
+    if (null == file) {
+      throw new IllegalArgumentException("file parameter is null");
+    }
+    return new SpnegoRequestBody() {
+      @Override
+      public boolean isRepeatable() {
+        return true;
+      }
+
+      @Override
+      public long getLength() {
+        return file.length();
+      }
+
+      @Override
+      public void writeTo(final OutputStream out) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+          copy(in, out, -1);
+        } finally {
+          in.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns true if the body can be sent more than once.
+   * @return true if repeatable
+   */
+  public abstract boolean isRepeatable();
+
+  /**
+   * Returns the number of bytes of the body.
+   * @return length, or -1 if unknown
+   */
+  public abstract long getLength();
+
+  /**
+   * Writes the body to the given stream.
+   * @param out the request stream
+   * @throws java.io.IOException
+   */
+  public abstract void writeTo(OutputStream out) throws IOException;
+
+  private static void copy(final InputStream in, final OutputStream out, final long length)
+      throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long remaining = (length < 0) ? Long.MAX_VALUE : length;
+    while (remaining > 0) {
+      final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read < 0) {
+        break;
+      }
+      out.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+}
@@ -21,18 +21,39 @@ package org.silverpeas.spnego;
 import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
 import javax.security.auth.login.LoginException;
+import javax.xml.soap.AttachmentPart;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.MimeHeaders;
 import javax.xml.soap.SOAPConnection;
 import javax.xml.soap.SOAPConstants;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.PrivilegedActionException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * This class can be used to make SOAP calls to a protected SOAP Web Service.
@@ -84,6 +105,18 @@ import java.security.PrivilegedActionException;
  * </pre>
  * <p/>
  * <p>
+ * An instance created with a {@link SpnegoHttpClient} is long-lived: it is shared by
+ * the threads making many calls to the same service, the credential and the
+ * HTTP connections being reused from one call to another:
+ * <pre>
+ *  final SpnegoSOAPConnection conn =
+ *      new SpnegoSOAPConnection(new SpnegoHttpClient("spnego-client"));
+ *  ...
+ *  response = conn.call(message, this.serviceLocation);
+ * </pre>
+ * </p>
+ * <p/>
+ * <p>
  * To see a full working example, take a look at the
  * <a href="http://spnego.sourceforge.net/ExampleSpnegoSOAPClient.java"
  * target="_blank">ExampleSpnegoSOAPClient.java</a>
@@ -101,8 +134,38 @@ import java.security.PrivilegedActionException;
  */
 public class SpnegoSOAPConnection extends SOAPConnection {
 
+  /**
+   * Factory of the response messages, created once.
+   */
+  private static MessageFactory factory = null;
+
+  /**
+   * Size of the buffer of a spooled response.
+   */
+  private static final int SPOOL_SIZE = 256 * 1024;
+
+  /**
+   * Factory of the response parsers, created once.
+   */
+  private static XMLInputFactory inputFactory = null;
+
   private final transient SpnegoHttpURLConnection conn;
 
+  /**
+   * Client of the long-lived mode (null in the one-shot mode).
+   */
+  private final transient SpnegoHttpClient client;
+
+  /**
+   * Flag to serialize the request messages straight to the connection.
+   */
+  private volatile boolean streaming = false;
+
+  /**
+   * Directory of the spooled responses (null if the responses are not spooled).
+   */
+  private volatile File spoolDirectory = null;
+
   /**
    * Creates an instance where the LoginContext relies on a keytab
    * file being specified by "java.security.auth.login.config" or
@@ -115,6 +178,7 @@ public class SpnegoSOAPConnection extends SOAPConnection {
 
     super();
     this.conn = new SpnegoHttpURLConnection(loginModuleName);
+    this.client = null;
   }
 
   /**
@@ -136,6 +200,7 @@ public class SpnegoSOAPConnection extends SOAPConnection {
   public SpnegoSOAPConnection(final GSSCredential creds, final boolean dispose) {
     super();
     this.conn = new SpnegoHttpURLConnection(creds, dispose);
+    this.client = null;
   }
 
   /**
@@ -153,59 +218,370 @@ public class SpnegoSOAPConnection extends SOAPConnection {
 
     super();
     this.conn = new SpnegoHttpURLConnection(loginModuleName, username, password);
+    this.client = null;
+  }
+
+  /**
+   * Creates a long-lived instance that makes its calls with the given client.
+   * <p/>
+   * <p>
+   * Unlike the other instances, which may be used for one call only, this
+   * one may be used for any number of calls, from any number of threads: the
+   * credential and the HTTP connections of the client are reused from one
+   * call to another, and close() does not close the client.
+   * </p>
+   * @param client the client of the SOAP Web Service
+   */
+  public SpnegoSOAPConnection(final SpnegoHttpClient client) {
+    super();
+    if (null == client) {
+      throw new IllegalArgumentException("client parameter is null");
+    }
+    this.conn = null;
+    this.client = client;
   }
 
   @Override
   public final SOAPMessage call(final SOAPMessage request, final Object endpoint)
       throws SOAPException {
 
-    SOAPMessage message = null;
-    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
+    final SpnegoHttpURLConnection spnego = this.send(request, endpoint);
     try {
-      final MimeHeaders headers = request.getMimeHeaders();
-      final String[] contentType = headers.getHeader("Content-Type");
-      final String[] soapAction = headers.getHeader("SOAPAction");
+      final String contentType = spnego.getHeaderField("Content-Type");
+      final InputStream in = spnego.getResponseStream();
+      try {
+        final File directory = this.spoolDirectory;
+        if (null != in && null != directory && SpnegoMultipartSpool.isMultipart(contentType)) {
+          return createMessage(SpnegoMultipartSpool.read(
+              new BufferedInputStream(in, SPOOL_SIZE), contentType, directory));
+        }
+
+        final MimeHeaders headers = new MimeHeaders();
+        if (null != contentType) {
+          // needed to parse a multipart (attachments, MTOM/XOP) response
+          headers.addHeader("Content-Type", contentType);
+        }
+        return getMessageFactory().createMessage(headers, in);
+      } finally {
+        if (null != in) {
+          in.close();
+        }
+      }
+    } catch (IOException e) {
+      throw new SOAPException(e);
+    } finally {
+      this.release(spnego);
+    }
+  }
 
-      // build the Content-Type HTTP header parameter if not defined
-      if (null == contentType) {
-        final StringBuilder header = new StringBuilder();
+  /**
+   * Builds the response message from the given parts, root part first. The
+   * spooled attachments are backed by their file, deleted by
+   * {@link #dispose(javax.xml.soap.SOAPMessage)}.
+   */
+  private static SOAPMessage createMessage(final List<SpnegoMultipartSpool.Part> parts)
+      throws SOAPException {
 
-        if (null == soapAction) {
-          header.append("application/soap+xml; charset=UTF-8;");
+    boolean done = false;
+    try {
+      final SpnegoMultipartSpool.Part root = parts.get(0);
+      String contentType = root.getHeader("Content-Type");
+      if (null != contentType
+          && contentType.trim().toLowerCase(Locale.ENGLISH).startsWith("application/xop+xml")) {
+        // MTOM/XOP root part: parsed as a plain SOAP envelope, the
+        // xop:Include elements are left to the caller
+        final String type = SpnegoMultipartSpool.getParameter(contentType, "type");
+        if (null != type) {
+          contentType = type;
+        }
+      }
+      final MimeHeaders headers = new MimeHeaders();
+      if (null != contentType) {
+        headers.addHeader("Content-Type", contentType);
+      }
+      final SOAPMessage message = getMessageFactory().createMessage(headers,
+          new ByteArrayInputStream(root.getContent()));
+
+      for (final SpnegoMultipartSpool.Part part : parts.subList(1, parts.size())) {
+        final AttachmentPart attachment = message.createAttachmentPart();
+        for (final String[] header : part.getHeaders()) {
+          attachment.addMimeHeader(header[0], header[1]);
+        }
+        String type = part.getHeader("Content-Type");
+        if (null == type) {
+          type = "application/octet-stream";
+        }
+        if (null != part.getFile()) {
+          attachment.setDataHandler(new DataHandler(new SpoolDataSource(part.getFile(), type)));
         } else {
-          header.append("text/xml; charset=UTF-8;");
+          attachment.setRawContentBytes(part.getContent(), 0, part.getContent().length, type);
         }
+        message.addAttachmentPart(attachment);
+      }
+      done = true;
+      return message;
+    } catch (IOException e) {
+      throw new SOAPException(e);
+    } finally {
+      if (!done) {
+        SpnegoMultipartSpool.delete(parts);
+      }
+    }
+  }
 
-        // not defined as a MIME header but we need it as an HTTP header parameter
-        this.conn.addRequestProperty("Content-Type", header.toString());
-      } else {
-        if (contentType.length > 1) {
-          throw new IllegalArgumentException("Content-Type defined more than once.");
+  /**
+   * Deletes the files of the attachments of the given response that were
+   * spooled to disk (see {@link #setSpoolDirectory(java.io.File)}). The
+   * attachments must not be read anymore once the message is disposed.
+   * @param message a response returned by this connection
+   */
+  public static void dispose(final SOAPMessage message) {
+    final Iterator<?> attachments = message.getAttachments();
+    while (attachments.hasNext()) {
+      final AttachmentPart attachment = (AttachmentPart) attachments.next();
+      try {
+        final DataSource source = attachment.getDataHandler().getDataSource();
+        if (source instanceof SpoolDataSource) {
+          ((SpoolDataSource) source).delete();
         }
+      } catch (SOAPException e) {
+        // an attachment without content has no spooled file
+        assert true;
+      }
+    }
+  }
+
+  /**
+   * Adds the content of the given file to the given message as a binary
+   * attachment, and returns its Content-ID. The file is read when the
+   * message is written: with {@link #setStreaming(boolean)} it is streamed
+   * to the server, neither base64 encoded nor buffered.
+   * <p/>
+   * <p>
+   * SAAJ has no MTOM support: to send an MTOM/XOP message, reference the
+   * attachment from the SOAP Body with
+   * <code>&lt;xop:Include href="cid:<i>Content-ID</i>"/&gt;</code> and set the
+   * Content-Type MIME header of the message to a
+   * <code>multipart/related; type="application/xop+xml"</code> one.
+   * </p>
+   * @param message the message to send
+   * @param file the content of the attachment
+   * @param contentType the MIME type of the content
+   * @return the Content-ID of the attachment, without angle brackets
+   */
+  public static String addAttachment(final SOAPMessage message, final File file,
+      final String contentType) {
+
+    final String id = UUID.randomUUID().toString() + "@spnego";
+    final AttachmentPart part =
+        message.createAttachmentPart(new DataHandler(new FileDataSource(file)));
+    part.setContentId('<' + id + '>');
+    part.setContentType(contentType);
+    message.addAttachmentPart(part);
+    return id;
+  }
 
-        // user specified as a MIME header so add it as an HTTP header parameter
-        this.conn.addRequestProperty("Content-Type", contentType[0]);
+  /**
+   * Sets the directory where the attachments of the multipart responses are
+   * spooled. Each attachment sent in binary (as MTOM/XOP attachments are) is
+   * copied to its own temporary file as it is read from the connection, and
+   * the attachment of the response message is backed by that file: the heap
+   * holds the SOAP envelope only, whatever the size of the attachments. The
+   * files are kept as long as the message may be read, and are deleted by
+   * {@link #dispose(javax.xml.soap.SOAPMessage)}, which the caller must call
+   * once done with the response. Default is null: the whole response is
+   * loaded in memory by SAAJ.
+   * <p/>
+   * <p>
+   * SAAJ has no MTOM support: the envelope of an MTOM/XOP response is parsed
+   * as is, and its <code>xop:Include</code> elements are resolved by the
+   * caller from the Content-ID of the attachments.
+   * </p>
+   * @param directory directory of the spooled attachments, or null
+   */
+  public void setSpoolDirectory(final File directory) {
+    this.spoolDirectory = directory;
+  }
+
+  /**
+   * Sends the given message to the given endpoint and returns a pull parser
+   * over the response, positioned on the first element of the SOAP Body (or
+   * on the end of the Body if it is empty). The response is parsed as it is
+   * read from the connection, without building a SAAJ message, so that a
+   * large response can be processed in constant memory.
+   * <p/>
+   * <p>
+   * The caller must close the returned reader: closing it releases the
+   * connection. A one-shot instance is closed at the same time.
+   * </p>
+   * @param request the message to send
+   * @param endpoint the URL of the SOAP Web Service
+   * @return a reader over the content of the SOAP Body
+   * @throws javax.xml.soap.SOAPException
+   * @see #call(javax.xml.soap.SOAPMessage, Object, BodyHandler)
+   */
+  public final XMLStreamReader callForReader(final SOAPMessage request, final Object endpoint)
+      throws SOAPException {
+
+    final SpnegoHttpURLConnection spnego = this.send(request, endpoint);
+    final InputStream in = spnego.getResponseStream();
+    boolean opened = false;
+    try {
+      if (null == in) {
+        throw new SOAPException("Empty response from " + endpoint);
       }
 
-      // specify SOAPAction as an HTTP header parameter
-      if (null != soapAction) {
-        if (soapAction.length > 1) {
-          throw new IllegalArgumentException("SOAPAction defined more than once.");
+      final XMLStreamReader reader = getInputFactory().createXMLStreamReader(in);
+      final XMLStreamReader body = new StreamReaderDelegate(reader) {
+        @Override
+        public void close() throws XMLStreamException {
+          try {
+            super.close();
+            in.close();
+          } catch (IOException e) {
+            throw new XMLStreamException(e);
+          } finally {
+            SpnegoSOAPConnection.this.release(spnego);
+          }
+        }
+      };
+
+      // move to the content of the SOAP Body
+      while (body.hasNext()) {
+        if (body.next() == XMLStreamConstants.START_ELEMENT &&
+            "Body".equals(body.getLocalName()) && isEnvelopeNamespace(body.getNamespaceURI())) {
+          body.nextTag();
+          opened = true;
+          return body;
         }
-        this.conn.addRequestProperty("SOAPAction", soapAction[0]);
       }
+      throw new SOAPException("No SOAP Body in the response of " + endpoint);
+
+    } catch (XMLStreamException e) {
+      throw new SOAPException(e);
+    } finally {
+      if (!opened) {
+        if (null != in) {
+          try {
+            in.close();
+          } catch (IOException ioe) {
+            assert true;
+          }
+        }
+        this.release(spnego);
+      }
+    }
+  }
+
+  /**
+   * Sends the given message to the given endpoint and hands the content of
+   * the SOAP Body of the response to the given handler, as it is read from
+   * the connection. The connection is released once the handler returns.
+   * @param request the message to send
+   * @param endpoint the URL of the SOAP Web Service
+   * @param handler the handler of the SOAP Body
+   * @throws javax.xml.soap.SOAPException
+   * @see #callForReader(javax.xml.soap.SOAPMessage, Object)
+   */
+  public final void call(final SOAPMessage request, final Object endpoint,
+      final BodyHandler handler) throws SOAPException {
+
+    final XMLStreamReader reader = this.callForReader(request, endpoint);
+    try {
+      handler.handle(reader);
+    } catch (XMLStreamException e) {
+      throw new SOAPException(e);
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException e) {
+        assert true;
+      }
+    }
+  }
+
+  /**
+   * Sends the given messages to the given endpoint in the background, at
+   * most <code>parallelism</code> at a time, and returns their future
+   * responses in the order of the messages.
+   * <p/>
+   * <p>
+   * Only a long-lived instance can make batch calls: they run on the
+   * executor of its client, share its credential (and so its service
+   * tickets) and its kept-alive HTTP connections.
+   * </p>
+   * @param requests the messages to send
+   * @param endpoint the URL of the SOAP Web Service
+   * @param parallelism maximum number of concurrent calls of this batch
+   * @return the future responses, in the order of the messages
+   * @see SpnegoHttpClient#setExecutor(java.util.concurrent.ExecutorService)
+   */
+  public final List<Future<SOAPMessage>> callAll(final List<SOAPMessage> requests,
+      final Object endpoint, final int parallelism) {
 
-      request.writeTo(bos);
+    if (null == this.client) {
+      throw new IllegalStateException("Batch calls need a long-lived connection.");
+    }
+    if (null == requests) {
+      throw new IllegalArgumentException("requests parameter is null");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+    }
+
+    final List<Callable<SOAPMessage>> calls =
+        new ArrayList<Callable<SOAPMessage>>(requests.size());
+    for (final SOAPMessage request : requests) {
+      calls.add(new Callable<SOAPMessage>() {
+        @Override
+        public SOAPMessage call() throws SOAPException {
+          return SpnegoSOAPConnection.this.call(request, endpoint);
+        }
+      });
+    }
+
+    return this.client.submitAll(calls, parallelism, null);
+  }
+
+  /**
+   * Sends the given message and returns the connection once the response
+   * headers are received.
+   */
+  private SpnegoHttpURLConnection send(final SOAPMessage request, final Object endpoint)
+      throws SOAPException {
 
-      this.conn.connect(new URL(endpoint.toString()), bos);
+    // the MIME headers, the multipart Content-Type of a message with
+    // attachments included, are only set when the message is saved
+    if (request.saveRequired()) {
+      request.saveChanges();
+    }
 
-      final MessageFactory factory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+    try {
+      if (null != this.client) {
+        SpnegoHttpRequest http = new SpnegoHttpRequest("POST", new URL(endpoint.toString()));
+        for (String[] header : getHttpHeaders(request)) {
+          http = http.withHeader(header[0], header[1]);
+        }
+        return this.client.execute(http.withBody(getBody(request)));
+      }
 
+      boolean connected = false;
       try {
-        message = factory.createMessage(null, this.conn.getInputStream());
-      } catch (IOException e) {
-        message = factory.createMessage(null, this.conn.getErrorStream());
+        for (String[] header : getHttpHeaders(request)) {
+          this.conn.addRequestProperty(header[0], header[1]);
+        }
+
+        if (this.streaming) {
+          // the message is serialized only once the server has accepted the token
+          this.conn.setPreflight(true);
+        }
+        this.conn.connect(new URL(endpoint.toString()), getBody(request));
+        connected = true;
+        return this.conn;
+      } finally {
+        if (!connected) {
+          this.close();
+        }
       }
 
     } catch (MalformedURLException e) {
@@ -216,16 +592,145 @@ public class SpnegoSOAPConnection extends SOAPConnection {
       throw new SOAPException(e);
     } catch (PrivilegedActionException e) {
       throw new SOAPException(e);
-    } finally {
-      try {
-        bos.close();
-      } catch (IOException ioe) {
-        assert true;
-      }
+    }
+  }
+
+  /**
+   * Releases the connection of a call. A one-shot instance is closed.
+   */
+  private void release(final SpnegoHttpURLConnection spnego) {
+    if (null == this.client) {
       this.close();
+    } else {
+      spnego.disconnect();
+    }
+  }
+
+  private static boolean isEnvelopeNamespace(final String namespace) {
+    return SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE.equals(namespace) ||
+        SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE.equals(namespace);
+  }
+
+  /**
+   * Sets whether the request messages are serialized straight to the
+   * connection instead of being buffered first. Default is false.
+   * <p/>
+   * <p>
+   * In the streaming mode the message is sent in chunks, so the server must
+   * accept chunked requests, and it is serialized again if the server
+   * requests another leg of the context. The one-shot instances then
+   * authenticate with a HEAD request before sending the message; the
+   * long-lived instances do so if their client is set up that way (see
+   * {@link SpnegoHttpClient#setPreflight(boolean)}).
+   * </p>
+   * @param streaming true to stream the request messages
+   */
+  public void setStreaming(final boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Returns the body of the HTTP request of the given message.
+   */
+  private SpnegoRequestBody getBody(final SOAPMessage request)
+      throws IOException, SOAPException {
+
+    if (this.streaming) {
+      return new MessageBody(request);
     }
 
-    return message;
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    request.writeTo(bos);
+    return SpnegoRequestBody.of(bos);
+  }
+
+  /**
+   * Returns the HTTP headers (name and value) of the given message:
+   * Content-Type and SOAPAction.
+   */
+  private static List<String[]> getHttpHeaders(final SOAPMessage request) {
+    final List<String[]> httpHeaders = new ArrayList<String[]>(2);
+
+    final MimeHeaders headers = request.getMimeHeaders();
+    final String[] contentType = headers.getHeader("Content-Type");
+    final String[] soapAction = headers.getHeader("SOAPAction");
+
+    // build the Content-Type HTTP header parameter if not defined
+    if (null == contentType) {
+      final StringBuilder header = new StringBuilder();
+
+      if (null == soapAction) {
+        header.append("application/soap+xml; charset=UTF-8;");
+      } else {
+        header.append("text/xml; charset=UTF-8;");
+      }
+
+      // not defined as a MIME header but we need it as an HTTP header parameter
+      httpHeaders.add(new String[]{"Content-Type", header.toString()});
+    } else {
+      if (contentType.length > 1) {
+        throw new IllegalArgumentException("Content-Type defined more than once.");
+      }
+
+      // user specified as a MIME header so add it as an HTTP header parameter
+      httpHeaders.add(new String[]{"Content-Type", contentType[0]});
+    }
+
+    // specify SOAPAction as an HTTP header parameter
+    if (null != soapAction) {
+      if (soapAction.length > 1) {
+        throw new IllegalArgumentException("SOAPAction defined more than once.");
+      }
+      httpHeaders.add(new String[]{"SOAPAction", soapAction[0]});
+    }
+
+    return httpHeaders;
+  }
+
+  /**
+   * Returns the factory of the response parsers, creating it on the first call.
+   */
+  private static synchronized XMLInputFactory getInputFactory() {
+    if (null == inputFactory) {
+      inputFactory = XMLInputFactory.newInstance();
+      inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+    return inputFactory;
+  }
+
+  /**
+   * Returns the factory of the response messages, creating it on the first call.
+   */
+  private static synchronized MessageFactory getMessageFactory() throws SOAPException {
+    if (null == factory) {
+      factory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+    }
+    return factory;
+  }
+
+  /**
+   * Source of the content of an attachment spooled to disk.
+   */
+  private static final class SpoolDataSource extends FileDataSource {
+
+    private final String contentType;
+
+    SpoolDataSource(final File file, final String contentType) {
+      super(file);
+      this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+      return this.contentType;
+    }
+
+    void delete() {
+      if (getFile().exists() && !getFile().delete()) {
+        getFile().deleteOnExit();
+      }
+    }
   }
 
   @Override
@@ -234,4 +739,50 @@ public class SpnegoSOAPConnection extends SOAPConnection {
       this.conn.disconnect();
     }
   }
+
+  /**
+   * A request body serialized from its SOAP message each time it is sent.
+   */
+  private static final class MessageBody extends SpnegoRequestBody {
+
+    private final SOAPMessage message;
+
+    private MessageBody(final SOAPMessage message) {
+      super();
+      this.message = message;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getLength() {
+      return -1;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+      try {
+        this.message.writeTo(out);
+      } catch (SOAPException e) {
+        throw new IOException("SOAP message not serialized", e);
+      }
+    }
+  }
+
+  /**
+   * Handler of the SOAP Body of a response, read as it is received.
+   * @see SpnegoSOAPConnection#call(javax.xml.soap.SOAPMessage, Object, BodyHandler)
+   */
+  public interface BodyHandler {
+
+    /**
+     * Reads the content of the SOAP Body. The reader must not be closed.
+     * @param reader reader positioned on the first element of the SOAP Body
+     * @throws javax.xml.stream.XMLStreamException
+     */
+    void handle(XMLStreamReader reader) throws XMLStreamException;
+  }
 }
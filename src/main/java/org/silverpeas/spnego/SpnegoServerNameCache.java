@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of the service names (SPN) of the servers the clients connect to.
+ * <p/>
+ * <p>
+ * The {@link GSSName} of a host is created once and reused until its time-to-live has
+ * elapsed: as the GSS name keeps its Kerberos principal once resolved, a cache hit skips
+ * both the name construction and the host name canonicalization of the Kerberos layer.
+ * When the cache is full, the expired names are purged and, if none has expired, an
+ * arbitrary name is evicted.
+ * </p>
+ * <p/>
+ * <p>
+ * The cache is configured by System properties read when the class is loaded:
+ * <ul>
+ * <li><code>spnego.spn.cache.ttl</code>: time-to-live in seconds (default 300, 0 disables
+ * the cache)</li>
+ * <li><code>spnego.spn.cache.size</code>: maximum number of names (default 256)</li>
+ * <li><code>spnego.spn.canonicalize</code>: <code>none</code> (default) to build the SPN
+ * from the host of the URL as is, <code>dns</code> to build it from the canonical name of
+ * the host, resolved once per time-to-live</li>
+ * </ul>
+ * </p>
+ */
+final class SpnegoServerNameCache {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * Time-to-live of the names in milliseconds.
+   */
+  private static final long TTL = Integer.getInteger("spnego.spn.cache.ttl", 300) * 1000L;
+
+  /**
+   * Maximum number of names.
+   */
+  private static final int MAX_SIZE = Integer.getInteger("spnego.spn.cache.size", 256);
+
+  /**
+   * True to build the SPN from the canonical name of the host.
+   */
+  private static final boolean CANONICALIZE =
+      "dns".equalsIgnoreCase(System.getProperty("spnego.spn.canonicalize", "none"));
+
+  private static final ConcurrentMap<String, Named> NAMES =
+      new ConcurrentHashMap<String, Named>();
+
+  private SpnegoServerNameCache() {
+    // default private
+  }
+
+  /**
+   * Returns the service name of the given host.
+   * @param host host of the URL
+   * @return GSSName of the HTTP service of the host
+   * @throws org.ietf.jgss.GSSException
+   */
+  static GSSName get(final String host) throws GSSException {
+    if (TTL <= 0) {
+      return create(host);
+    }
+
+    final String key = host.toLowerCase(Locale.ENGLISH);
+    final long now = System.currentTimeMillis();
+    final Named cached = NAMES.get(key);
+    if (null != cached && cached.expiry > now) {
+      return cached.name;
+    }
+
+    final GSSName name = create(host);
+    if (null == cached && NAMES.size() >= MAX_SIZE) {
+      evict(now);
+    }
+    NAMES.put(key, new Named(name, now + TTL));
+    return name;
+  }
+
+  /**
+   * Removes all the cached names.
+   */
+  static void clear() {
+    NAMES.clear();
+  }
+
+  private static GSSName create(final String host) throws GSSException {
+    return SpnegoProvider.MANAGER.createName("HTTP@" + canonicalize(host),
+        GSSName.NT_HOSTBASED_SERVICE, SpnegoProvider.SPNEGO_OID);
+  }
+
+  private static String canonicalize(final String host) {
+    if (!CANONICALIZE) {
+      return host;
+    }
+    try {
+      return InetAddress.getByName(host).getCanonicalHostName().toLowerCase(Locale.ENGLISH);
+    } catch (UnknownHostException e) {
+      LOGGER.log(Level.FINE, "host name not canonicalized: " + host, e);
+      return host;
+    }
+  }
+
+  /**
+   * Removes the expired names, or an arbitrary one if none has expired.
+   */
+  private static void evict(final long now) {
+    final Iterator<Named> names = NAMES.values().iterator();
+    boolean evicted = false;
+    while (names.hasNext()) {
+      if (names.next().expiry <= now) {
+        names.remove();
+        evicted = true;
+      }
+    }
+    if (!evicted) {
+      final Iterator<String> keys = NAMES.keySet().iterator();
+      if (keys.hasNext()) {
+        keys.next();
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * A cached name with its expiry time.
+   */
+  private static final class Named {
+
+    private final GSSName name;
+
+    private final long expiry;
+
+    private Named(final GSSName name, final long expiry) {
+      this.name = name;
+      this.expiry = expiry;
+    }
+  }
+}
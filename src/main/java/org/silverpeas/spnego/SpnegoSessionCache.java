@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binds the authenticated {@link SpnegoPrincipal} to the HTTP session so that the
+ * subsequent requests of that session are authenticated without any GSS call.
+ * <p/>
+ * <p>
+ * The binding expires after the configured time-to-live; the client is then asked
+ * to authenticate again. The principal is not serialized with the session: if the
+ * session is passivated or replicated, the client is simply authenticated again.
+ * </p>
+ * <p/>
+ * <p>
+ * A session the client came with is rotated when a principal is first bound to it
+ * (session fixation): its attributes are moved to a new session. A session already
+ * bound to the same principal is kept as is when its binding is renewed.
+ * </p>
+ * @see SpnegoHttpFilter.Constants#SESSION_CACHE_TTL
+ */
+final class SpnegoSessionCache {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * Name of the session attribute holding the authenticated principal.
+   */
+  static final String ATTRIBUTE = SpnegoSessionCache.class.getName();
+
+  /**
+   * Time-to-live of a binding in milliseconds.
+   */
+  private final transient long ttl;
+
+  /**
+   * @param ttlSeconds time-to-live of the binding in seconds
+   */
+  SpnegoSessionCache(final long ttlSeconds) {
+    if (ttlSeconds <= 0) {
+      throw new IllegalArgumentException("Session cache TTL must be positive: " + ttlSeconds);
+    }
+    this.ttl = ttlSeconds * 1000L;
+  }
+
+  /**
+   * Returns the principal bound to the session of the request or null if there is
+   * no session, no binding or if the binding has expired.
+   * @param req servlet request
+   * @return the principal or null
+   */
+  SpnegoPrincipal get(final HttpServletRequest req) {
+    final HttpSession session = req.getSession(false);
+    if (null == session) {
+      return null;
+    }
+
+    final Object attribute = session.getAttribute(ATTRIBUTE);
+    if (!(attribute instanceof Entry)) {
+      return null;
+    }
+
+    final Entry entry = (Entry) attribute;
+    if (null == entry.principal || entry.expiry < System.currentTimeMillis()) {
+      // the binding is kept to recognize the principal when it is renewed
+      LOGGER.finer("session binding expired or lost.");
+      return null;
+    }
+
+    return entry.principal;
+  }
+
+  /**
+   * Binds the principal to the session of the request. A session not yet bound
+   * to that principal is first replaced by a new one with the same attributes, so
+   * that a session id known before the authentication (session fixation) is never
+   * bound to the principal.
+   * @param req servlet request
+   * @param principal the authenticated principal
+   */
+  void put(final HttpServletRequest req, final SpnegoPrincipal principal) {
+    final Entry entry = new Entry(principal, System.currentTimeMillis() + this.ttl);
+    final HttpSession previous = req.getSession(false);
+    if (null == previous) {
+      req.getSession(true).setAttribute(ATTRIBUTE, entry);
+      return;
+    }
+
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    try {
+      final Object bound = previous.getAttribute(ATTRIBUTE);
+      if (bound instanceof Entry && null != ((Entry) bound).principal &&
+          ((Entry) bound).principal.getName().equals(principal.getName())) {
+        previous.setAttribute(ATTRIBUTE, entry);
+        return;
+      }
+
+      final Enumeration<String> names = previous.getAttributeNames();
+      while (names.hasMoreElements()) {
+        final String name = names.nextElement();
+        attributes.put(name, previous.getAttribute(name));
+      }
+      previous.invalidate();
+    } catch (IllegalStateException e) {
+      // invalidated meanwhile, for instance by a concurrent authentication
+      LOGGER.log(Level.FINE, "session invalidated before its rotation, attributes lost.", e);
+      attributes.clear();
+    }
+
+    final HttpSession session = req.getSession(true);
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      session.setAttribute(attribute.getKey(), attribute.getValue());
+    }
+    session.setAttribute(ATTRIBUTE, entry);
+  }
+
+  /**
+   * Session attribute. The principal is transient as it may hold a delegated
+   * credential which cannot be serialized.
+   */
+  private static final class Entry implements Serializable {
+
+    private static final long serialVersionUID = -2957185227049516398L;
+
+    private final transient SpnegoPrincipal principal;
+
+    private final long expiry;
+
+    private Entry(final SpnegoPrincipal principal, final long expiry) {
+      this.principal = principal;
+      this.expiry = expiry;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSException;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work-around to the GSSContext/AD timestamp vs sequence field replay bug.
+ * <p/>
+ * <p>
+ * Two Kerberos authenticators created by the same client for the same service within
+ * the same timestamp granularity may be rejected by the service as a replay. Instead of
+ * serializing every context creation of the JVM and sleeping, each target service gets
+ * its own time slots: the callers targeting the same service are spread so that their
+ * authenticators are at least {@link #SPACING} milliseconds apart, while the callers
+ * targeting different services do not wait at all. No lock is held while waiting.
+ * </p>
+ * <p/>
+ * <p>
+ * The services are identified by their service name (SPN), so that the aliases of a
+ * same host share their time slots when the names are canonicalized. When more than
+ * {@link #MAX_SIZE} services are tracked, those whose last slot has elapsed are
+ * forgotten.
+ * </p>
+ */
+final class SpnegoTimestampGuard {
+
+  /**
+   * Minimum delay in milliseconds between two authenticators for the same service.
+   */
+  static final long SPACING = 31;
+
+  /**
+   * Number of services above which the idle ones are forgotten.
+   */
+  static final int MAX_SIZE = 256;
+
+  /**
+   * Value of a slot counter removed from the map.
+   */
+  private static final long RETIRED = -1L;
+
+  /**
+   * Next free time slot, by service.
+   */
+  private static final ConcurrentMap<String, AtomicLong> SLOTS =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private SpnegoTimestampGuard() {
+    // default private
+  }
+
+  /**
+   * Waits, if needed, until the caller owns a time slot for the service of the
+   * given URL.
+   * @param url HTTP address of the server
+   * @throws org.ietf.jgss.GSSException
+   */
+  static void await(final URL url) throws GSSException {
+    await(SpnegoProvider.getServerName(url).toString().toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Waits, if needed, until the caller owns a time slot for the given service.
+   * @param service the target service name
+   */
+  static void await(final String service) {
+    if (SLOTS.size() > MAX_SIZE) {
+      purge(System.currentTimeMillis());
+    }
+
+    AtomicLong next = counter(service);
+    long now;
+    long slot;
+    while (true) {
+      now = System.currentTimeMillis();
+      final long last = next.get();
+      if (last == RETIRED) {
+        // purged meanwhile
+        next = counter(service);
+        continue;
+      }
+      slot = Math.max(now, last);
+      if (next.compareAndSet(last, slot + SPACING)) {
+        break;
+      }
+    }
+
+    if (slot > now) {
+      try {
+        Thread.sleep(slot - now);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of tracked services.
+   * @return number of services
+   */
+  static int size() {
+    return SLOTS.size();
+  }
+
+  /**
+   * Returns the slot counter of the given service, created if needed.
+   */
+  private static AtomicLong counter(final String service) {
+    AtomicLong next = SLOTS.get(service);
+    if (null != next && next.get() == RETIRED) {
+      SLOTS.remove(service, next);
+      next = null;
+    }
+    if (null == next) {
+      final AtomicLong created = new AtomicLong(0);
+      next = SLOTS.putIfAbsent(service, created);
+      if (null == next) {
+        next = created;
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Removes the services whose last slot has elapsed. A counter is retired
+   * before its removal so that no slot can be taken on it afterwards.
+   */
+  private static void purge(final long now) {
+    for (Map.Entry<String, AtomicLong> entry : SLOTS.entrySet()) {
+      final AtomicLong next = entry.getValue();
+      final long last = next.get();
+      if (last != RETIRED && last <= now && next.compareAndSet(last, RETIRED)) {
+        SLOTS.remove(entry.getKey(), next);
+      }
+    }
+  }
+}
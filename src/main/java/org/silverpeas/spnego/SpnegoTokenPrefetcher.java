@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.silverpeas.spnego.SpnegoHttpFilter.Constants;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates the first Negotiate token of the next call to a server in the background.
+ * <p/>
+ * <p>
+ * For each server (and delegation flag) one GSSContext is kept ready with its initial
+ * token, which includes the service ticket request to the KDC. A call takes the ready
+ * token, if any, and triggers the generation of the next one when the previous call to
+ * the same server is less than {@link #MAX_AGE} milliseconds old, so that in a steady
+ * flow of calls the token is never generated on the caller thread, while a server called
+ * once costs no extra context. A token older than {@link #MAX_AGE} milliseconds is
+ * discarded: its authenticator would get close to the clock skew window of the server.
+ * At most {@link #MAX_SIZE} tokens are kept ready or being generated.
+ * </p>
+ */
+final class SpnegoTokenPrefetcher {
+
+  private static final Logger LOGGER = Logger.getLogger(Constants.LOGGER_NAME);
+
+  /**
+   * Maximum age in milliseconds of a ready token.
+   */
+  static final long MAX_AGE = 60 * 1000L;
+
+  /**
+   * Maximum number of servers with a ready token.
+   */
+  static final int MAX_SIZE = 64;
+
+  /**
+   * Maximum number of servers whose last call is tracked.
+   */
+  private static final int MAX_CALLS = 1024;
+
+  private final transient GSSCredential credential;
+
+  /**
+   * Ready token, by server.
+   */
+  private final transient ConcurrentMap<String, Token> tokens =
+      new ConcurrentHashMap<String, Token>();
+
+  /**
+   * Servers for which a token is being generated.
+   */
+  private final transient ConcurrentMap<String, Boolean> pending =
+      new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * Time of the last call, by server.
+   */
+  private final transient ConcurrentMap<String, Long> calls =
+      new ConcurrentHashMap<String, Long>();
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param credential the credential of the client
+   */
+  SpnegoTokenPrefetcher(final GSSCredential credential) {
+    this.credential = credential;
+  }
+
+  /**
+   * Takes the ready token for the given server and, if the server has been called
+   * recently, generates the next one in the background.
+   * @param url HTTP address of the server
+   * @param credDeleg true if the credential is to be delegated
+   * @param executor executor of the generation
+   * @return the ready token, null if none
+   */
+  Token take(final URL url, final boolean credDeleg, final Executor executor) {
+    final String key = key(url, credDeleg);
+    final Token token = this.tokens.remove(key);
+
+    final long now = System.currentTimeMillis();
+    if (this.calls.size() >= MAX_CALLS) {
+      expireCalls(now);
+    }
+    final Long previous = this.calls.put(key, now);
+    if (null != previous && now - previous <= MAX_AGE) {
+      prefetch(url, credDeleg, executor);
+    }
+
+    if (null == token) {
+      return null;
+    }
+    if (now - token.created > MAX_AGE) {
+      token.dispose();
+      return null;
+    }
+    return token;
+  }
+
+  /**
+   * Generates a token for the given server in the background, unless one is already
+   * being generated.
+   * @param url HTTP address of the server
+   * @param credDeleg true if the credential is to be delegated
+   * @param executor executor of the generation
+   */
+  void prefetch(final URL url, final boolean credDeleg, final Executor executor) {
+    final String key = key(url, credDeleg);
+    expireTokens(System.currentTimeMillis());
+    if (this.closed || this.tokens.size() + this.pending.size() >= MAX_SIZE ||
+        null != this.pending.putIfAbsent(key, Boolean.TRUE)) {
+      return;
+    }
+
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final Token token = generate(url, credDeleg);
+          final Token previous = SpnegoTokenPrefetcher.this.tokens.put(key, token);
+          if (null != previous) {
+            previous.dispose();
+          }
+          if (SpnegoTokenPrefetcher.this.closed) {
+            clear();
+          }
+        } catch (GSSException e) {
+          LOGGER.log(Level.FINE, "token not generated for " + url.getHost(), e);
+        } finally {
+          SpnegoTokenPrefetcher.this.pending.remove(key);
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      this.pending.remove(key);
+    }
+  }
+
+  /**
+   * Discards the ready tokens and stops generating new ones.
+   */
+  void close() {
+    this.closed = true;
+    this.calls.clear();
+    clear();
+  }
+
+  /**
+   * Discards the ready tokens older than {@link #MAX_AGE}.
+   */
+  private void expireTokens(final long now) {
+    for (Map.Entry<String, Token> entry : this.tokens.entrySet()) {
+      final Token token = entry.getValue();
+      if (now - token.created > MAX_AGE && this.tokens.remove(entry.getKey(), token)) {
+        token.dispose();
+      }
+    }
+  }
+
+  /**
+   * Forgets the servers not called for {@link #MAX_AGE}, or all of them if
+   * there are still too many.
+   */
+  private void expireCalls(final long now) {
+    final Iterator<Long> times = this.calls.values().iterator();
+    while (times.hasNext()) {
+      if (now - times.next() > MAX_AGE) {
+        times.remove();
+      }
+    }
+    if (this.calls.size() >= MAX_CALLS) {
+      this.calls.clear();
+    }
+  }
+
+  private void clear() {
+    for (String key : this.tokens.keySet()) {
+      final Token token = this.tokens.remove(key);
+      if (null != token) {
+        token.dispose();
+      }
+    }
+  }
+
+  private Token generate(final URL url, final boolean credDeleg) throws GSSException {
+    // work-around to GSSContext/AD timestamp vs sequence field replay bug
+    SpnegoTimestampGuard.await(url);
+
+    final GSSContext context = SpnegoProvider.getGSSContext(this.credential, url);
+    try {
+      return new Token(context, SpnegoHttpURLConnection.initContext(context, credDeleg));
+    } catch (GSSException e) {
+      context.dispose();
+      throw e;
+    }
+  }
+
+  private static String key(final URL url, final boolean credDeleg) {
+    return url.getHost().toLowerCase(Locale.ENGLISH) + '\n' + credDeleg;
+  }
+
+  /**
+   * A GSSContext with its initial token, to be used by one connection only.
+   */
+  static final class Token {
+
+    private final GSSContext context;
+
+    private final byte[] token;
+
+    private final long created;
+
+    private Token(final GSSContext context, final byte[] token) {
+      this.context = context;
+      this.token = token;
+      this.created = System.currentTimeMillis();
+    }
+
+    GSSContext getContext() {
+      return this.context;
+    }
+
+    byte[] getToken() {
+      return this.token;
+    }
+
+    void dispose() {
+      try {
+        this.context.dispose();
+      } catch (GSSException e) {
+        LOGGER.log(Level.WARNING, "call to dispose context failed.", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput curve of the acceptor from 1 to 16 threads, with one shard (the former
+ * JVM-wide lock) and with one shard per thread. Each handshake holds its shard for
+ * a fixed time, standing for the ticket decryption, so that the curve shows the
+ * serialization of the handshakes rather than the number of processors. Not run by
+ * the default build:
+ * <pre>
+ *   mvn test -Dtest=SpnegoAcceptorBenchmark
+ * </pre>
+ */
+public class SpnegoAcceptorBenchmark {
+
+  private static final int MAX_THREADS = 16;
+
+  private static final int HANDSHAKES = 4000;
+
+  /**
+   * Time a shard is held by a handshake.
+   */
+  private static final long HANDSHAKE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  @Test
+  public void throughputCurve() throws Exception {
+    for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+      final double serial = run(threads, SpnegoAcceptorTest.acceptor(1, new ReentrantLock()));
+      final double sharded =
+          run(threads, SpnegoAcceptorTest.acceptor(threads, new ReentrantLock()));
+      System.out.println(threads + " threads: " + (long) serial + " handshakes/s with 1 shard, "
+          + (long) sharded + " handshakes/s with " + threads + " shards");
+      if (threads > 1) {
+        assertTrue("no scaling with " + threads + " shards: " + sharded + " vs " + serial,
+            sharded > serial * 1.5);
+      }
+    }
+  }
+
+  /**
+   * Runs HANDSHAKES handshakes on the given acceptor from the given number of threads.
+   * @return number of handshakes per second
+   */
+  private static double run(final int threads, final SpnegoAcceptor acceptor)
+      throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger count = new AtomicInteger(0);
+
+    for (int i = 0; i < threads; i++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            while (count.incrementAndGet() <= HANDSHAKES) {
+              final SpnegoAcceptor.Shard shard = acceptor.lock();
+              try {
+                LockSupport.parkNanos(HANDSHAKE_NANOS);
+              } finally {
+                shard.unlock();
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    final long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - begin;
+    return HANDSHAKES * 1000000000.0 / elapsed;
+  }
+}
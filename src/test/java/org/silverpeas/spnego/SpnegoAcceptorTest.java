@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.ietf.jgss.GSSCredential;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpnegoAcceptorTest {
+
+  private static final int THREADS = 16;
+
+  private static final int HANDSHAKES = 20000;
+
+  @Test
+  public void acquiredCredentialsAreDisposedOnFailure() {
+    final AtomicInteger disposed = new AtomicInteger(0);
+    final GSSCredential given = credential(disposed);
+    final AtomicInteger acquired = new AtomicInteger(0);
+    final Exception failure = new Exception("no credential");
+
+    try {
+      new SpnegoAcceptor(given, new PrivilegedExceptionAction<GSSCredential>() {
+        @Override
+        public GSSCredential run() throws Exception {
+          if (acquired.incrementAndGet() == 3) {
+            throw failure;
+          }
+          return credential(disposed);
+        }
+      }, 4, new ReentrantLock());
+      throw new AssertionError("acceptor created");
+    } catch (PrivilegedActionException e) {
+      assertTrue(e.getException() == failure);
+    }
+    // the two shards acquired, not the credential given by the caller
+    assertEquals(2, disposed.get());
+  }
+
+  @Test
+  public void singleShardUsesDefaultLock() throws Exception {
+    final ReentrantLock lock = new ReentrantLock();
+    final SpnegoAcceptor acceptor = acceptor(1, lock);
+
+    final SpnegoAcceptor.Shard shard = acceptor.lock();
+    assertTrue(lock.isHeldByCurrentThread());
+    shard.unlock();
+    assertEquals(1, acceptor.getConcurrency());
+  }
+
+  /**
+   * Many threads accept concurrently: a shard credential is never used by two
+   * threads at once, and every shard serves handshakes.
+   */
+  @Test
+  public void concurrentAcceptsNeverShareCredential() throws Exception {
+    final int concurrency = 4;
+    final SpnegoAcceptor acceptor = acceptor(concurrency, new ReentrantLock());
+    final Map<GSSCredential, AtomicBoolean> inUse =
+        new IdentityHashMap<GSSCredential, AtomicBoolean>();
+    final Map<GSSCredential, AtomicInteger> served =
+        new IdentityHashMap<GSSCredential, AtomicInteger>();
+    // free shards are taken in the round-robin order: one of each
+    for (int i = 0; i < concurrency; i++) {
+      final SpnegoAcceptor.Shard shard = acceptor.lock();
+      inUse.put(shard.getCredential(), new AtomicBoolean(false));
+      served.put(shard.getCredential(), new AtomicInteger(0));
+      shard.unlock();
+    }
+    assertEquals(concurrency, served.size());
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicInteger count = new AtomicInteger(0);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < THREADS; t++) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            while (count.incrementAndGet() <= HANDSHAKES) {
+              final SpnegoAcceptor.Shard shard = acceptor.lock();
+              try {
+                final AtomicBoolean busy = inUse.get(shard.getCredential());
+                if (!busy.compareAndSet(false, true)) {
+                  throw new IllegalStateException("credential used concurrently");
+                }
+                served.get(shard.getCredential()).incrementAndGet();
+                Thread.yield();
+                busy.set(false);
+              } finally {
+                shard.unlock();
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    int total = 0;
+    for (AtomicInteger handshakes : served.values()) {
+      assertTrue(handshakes.get() > 0);
+      total += handshakes.get();
+    }
+    assertEquals(HANDSHAKES, total);
+  }
+
+  static SpnegoAcceptor acceptor(final int concurrency, final ReentrantLock lock)
+      throws PrivilegedActionException {
+    final AtomicInteger disposed = new AtomicInteger(0);
+    return new SpnegoAcceptor(credential(disposed),
+        new PrivilegedExceptionAction<GSSCredential>() {
+          @Override
+          public GSSCredential run() {
+            return credential(disposed);
+          }
+        }, concurrency, lock);
+  }
+
+  /**
+   * Returns a credential that counts its disposals.
+   */
+  static GSSCredential credential(final AtomicInteger disposed) {
+    return (GSSCredential) Proxy.newProxyInstance(GSSCredential.class.getClassLoader(),
+        new Class<?>[] {GSSCredential.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("dispose".equals(method.getName())) {
+              disposed.incrementAndGet();
+            } else if ("hashCode".equals(method.getName())) {
+              return System.identityHashCode(proxy);
+            } else if ("equals".equals(method.getName())) {
+              return proxy == args[0];
+            }
+            return null;
+          }
+        });
+  }
+}
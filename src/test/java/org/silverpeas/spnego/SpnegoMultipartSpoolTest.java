@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpnegoMultipartSpoolTest {
+
+  private static final String CONTENT_TYPE = "multipart/related; type=\"application/xop+xml\"; "
+      + "boundary=\"uuid:b1\"; start=\"<root@spnego>\"; start-info=\"application/soap+xml\"";
+
+  private static final byte[] ENVELOPE = "<env:Envelope/>".getBytes();
+
+  @Test
+  public void parametersAreUnquoted() {
+    assertEquals("uuid:b1", SpnegoMultipartSpool.getParameter(CONTENT_TYPE, "boundary"));
+    assertEquals("<root@spnego>", SpnegoMultipartSpool.getParameter(CONTENT_TYPE, "start"));
+    assertEquals("application/xop+xml", SpnegoMultipartSpool.getParameter(CONTENT_TYPE, "type"));
+    assertEquals("x", SpnegoMultipartSpool.getParameter("multipart/related;boundary=x", "boundary"));
+    assertNull(SpnegoMultipartSpool.getParameter(CONTENT_TYPE, "charset"));
+    assertTrue(SpnegoMultipartSpool.isMultipart(CONTENT_TYPE));
+    assertFalse(SpnegoMultipartSpool.isMultipart("application/soap+xml"));
+  }
+
+  @Test
+  public void binaryAttachmentIsSpooledToFile() throws IOException {
+    // CR and delimiter-like bytes inside the attachment must be kept
+    final byte[] binary = new byte[100000];
+    for (int i = 0; i < binary.length; i++) {
+      binary[i] = (byte) (i % 7 == 0 ? '\r' : i % 11 == 0 ? '-' : i);
+    }
+    final byte[] content = multipart("--prologue\r\n", part("<data@spnego>", "binary", binary),
+        part("<root@spnego>", null, ENVELOPE));
+
+    final List<SpnegoMultipartSpool.Part> parts = read(content);
+    try {
+      assertEquals(2, parts.size());
+      assertArrayEquals(ENVELOPE, parts.get(0).getContent());
+      assertNull(parts.get(0).getFile());
+      assertEquals("<data@spnego>", parts.get(1).getHeader("content-id"));
+      assertNull(parts.get(1).getContent());
+      assertArrayEquals(binary, bytes(parts.get(1).getFile()));
+    } finally {
+      SpnegoMultipartSpool.delete(parts);
+    }
+    assertFalse(parts.get(1).getFile().exists());
+  }
+
+  @Test
+  public void encodedAttachmentIsKeptInMemory() throws IOException {
+    final byte[] encoded = "AAECAw==".getBytes();
+    final List<SpnegoMultipartSpool.Part> parts = read(multipart("",
+        part("<root@spnego>", null, ENVELOPE), part("<data@spnego>", "base64", encoded)));
+
+    assertEquals(2, parts.size());
+    assertNull(parts.get(1).getFile());
+    assertArrayEquals(encoded, parts.get(1).getContent());
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedContentIsRejected() throws IOException {
+    final byte[] content = multipart("", part("<root@spnego>", null, ENVELOPE),
+        part("<data@spnego>", "binary", new byte[1000]));
+    final byte[] truncated = new byte[content.length - 40];
+    System.arraycopy(content, 0, truncated, 0, truncated.length);
+    read(truncated);
+  }
+
+  private static List<SpnegoMultipartSpool.Part> read(final byte[] content) throws IOException {
+    final File directory = new File(System.getProperty("java.io.tmpdir"));
+    return SpnegoMultipartSpool.read(new ByteArrayInputStream(content), CONTENT_TYPE, directory);
+  }
+
+  private static byte[] part(final String id, final String encoding, final byte[] content)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(("Content-ID: " + id + "\r\n").getBytes());
+    if (null != encoding) {
+      out.write(("Content-Transfer-Encoding: " + encoding + "\r\n").getBytes());
+    }
+    out.write("\r\n".getBytes());
+    out.write(content);
+    return out.toByteArray();
+  }
+
+  private static byte[] multipart(final String preamble, final byte[]... parts)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(preamble.getBytes());
+    for (final byte[] part : parts) {
+      out.write("--uuid:b1\r\n".getBytes());
+      out.write(part);
+      out.write("\r\n".getBytes());
+    }
+    out.write("--uuid:b1--\r\n".getBytes());
+    return out.toByteArray();
+  }
+
+  private static byte[] bytes(final File file) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[8192];
+      int count = in.read(buffer);
+      while (count >= 0) {
+        out.write(buffer, 0, count);
+        count = in.read(buffer);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+}
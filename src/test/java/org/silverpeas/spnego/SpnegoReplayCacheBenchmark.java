@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the throughput of the in-memory replay cache with the default one of the
+ * JDK Kerberos acceptor, from 1 to 2 x processors threads. Not run by the default build:
+ * <pre>
+ *   mvn test -Dtest=SpnegoReplayCacheBenchmark
+ * </pre>
+ * The JDK cache is only measured if its internal classes are reachable, that is on
+ * Java 8 or with
+ * <code>--add-exports java.security.jgss/sun.security.krb5.internal=ALL-UNNAMED
+ * --add-exports java.security.jgss/sun.security.krb5.internal.rcache=ALL-UNNAMED</code>.
+ */
+public class SpnegoReplayCacheBenchmark {
+
+  /**
+   * Handshake rate the in-memory cache must sustain.
+   */
+  private static final int TARGET_RATE = 10000;
+
+  private static final int TOKENS = 200000;
+
+  /**
+   * A replay cache under test.
+   */
+  private interface Cache {
+
+    void add(int thread, int index) throws Exception;
+  }
+
+  @Test
+  public void memoryCache() throws Exception {
+    for (int threads = 1; threads <= maxThreads(); threads *= 2) {
+      final SpnegoReplayCache cache = new SpnegoReplayCache(300, TOKENS * 2);
+      final double rate = run(threads, new Cache() {
+        @Override
+        public void add(final int thread, final int index) {
+          final byte[] token = ByteBuffer.allocate(8).putInt(thread).putInt(index).array();
+          if (!cache.add(token)) {
+            throw new IllegalStateException("token rejected");
+          }
+        }
+      });
+      System.out.println("memory cache, " + threads + " threads: " + (long) rate + " tokens/s");
+      assertTrue("below " + TARGET_RATE + " tokens/s: " + rate, rate >= TARGET_RATE);
+    }
+  }
+
+  @Test
+  public void jdkCache() throws Exception {
+    final Object cache;
+    final Method checkAndStore;
+    final Constructor<?> kerberosTime;
+    final Constructor<?> authTime;
+    try {
+      final Class<?> replayCache = Class.forName("sun.security.krb5.internal.ReplayCache");
+      // the default cache of the JDK, as configured by sun.security.krb5.rcache
+      cache = replayCache.getMethod("getInstance").invoke(null);
+      kerberosTime =
+          Class.forName("sun.security.krb5.internal.KerberosTime").getConstructor(long.class);
+      authTime = authTimeConstructor(
+          Class.forName("sun.security.krb5.internal.rcache.AuthTimeWithHash"));
+      checkAndStore = replayCache.getMethod("checkAndStore", kerberosTime.getDeclaringClass(),
+          authTime.getDeclaringClass());
+    } catch (Exception e) {
+      Assume.assumeNoException(e);
+      return;
+    }
+
+    for (int threads = 1; threads <= maxThreads(); threads *= 2) {
+      final double rate = run(threads, new Cache() {
+        @Override
+        public void add(final int thread, final int index) throws Exception {
+          final long now = System.currentTimeMillis();
+          final String hash = thread + "-" + index + "-" + now;
+          final Object time = (authTime.getParameterTypes().length == 6) ?
+              authTime.newInstance("client@REALM", "HTTP/server@REALM", (int) (now / 1000L),
+                  index % 1000000, "SHA256", hash) :
+              authTime.newInstance("client@REALM", "HTTP/server@REALM", (int) (now / 1000L),
+                  index % 1000000, hash);
+          checkAndStore.invoke(cache, kerberosTime.newInstance(now), time);
+        }
+      });
+      System.out.println("JDK cache, " + threads + " threads: " + (long) rate + " tokens/s");
+    }
+  }
+
+  private static Constructor<?> authTimeConstructor(final Class<?> type) {
+    for (Constructor<?> constructor : type.getConstructors()) {
+      final int count = constructor.getParameterTypes().length;
+      if (count == 5 || count == 6) {
+        return constructor;
+      }
+    }
+    throw new IllegalStateException("no known constructor of " + type);
+  }
+
+  private static int maxThreads() {
+    return Runtime.getRuntime().availableProcessors() * 2;
+  }
+
+  /**
+   * Adds TOKENS distinct tokens to the cache from the given number of threads.
+   * @return number of tokens per second
+   */
+  private static double run(final int threads, final Cache cache) throws Exception {
+    final int perThread = TOKENS / threads;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final AtomicInteger ids = new AtomicInteger(0);
+
+    for (int i = 0; i < threads; i++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          final int thread = ids.getAndIncrement();
+          try {
+            start.await();
+            for (int index = 0; index < perThread; index++) {
+              cache.add(thread, index);
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    final long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - begin;
+
+    assertNull(failure.get());
+    return perThread * (double) threads * 1000000000L / elapsed;
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpnegoReplayCacheTest {
+
+  private static final byte[] SPNEGO_OID = {0x2b, 0x06, 0x01, 0x05, 0x05, 0x02};
+
+  private static final byte[] KRB5_OID =
+      {0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+  private static final byte[] MS_KRB5_OID =
+      {0x2a, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xf7, 0x12, 0x01, 0x02, 0x02};
+
+  @Test
+  public void replayedTokenIsRejected() {
+    final SpnegoReplayCache cache = new SpnegoReplayCache(300, 100);
+    final byte[] token = krb5(KRB5_OID, authenticator(1));
+
+    assertTrue(cache.add(token));
+    assertFalse(cache.add(token.clone()));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void distinctTokensAreAccepted() {
+    final SpnegoReplayCache cache = new SpnegoReplayCache(300, 100);
+
+    assertTrue(cache.add(spnego(KRB5_OID, KRB5_OID, authenticator(1))));
+    assertTrue(cache.add(spnego(KRB5_OID, KRB5_OID, authenticator(2))));
+    assertTrue(cache.add(new byte[] {1, 2, 3}));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void rewrappedAuthenticatorIsRejected() {
+    final SpnegoReplayCache cache = new SpnegoReplayCache(300, 100);
+    final byte[] authenticator = authenticator(7);
+
+    assertTrue(cache.add(spnego(KRB5_OID, KRB5_OID, authenticator)));
+    // same AP-REQ in another NegTokenInit, and unwrapped
+    assertFalse(cache.add(spnego(MS_KRB5_OID, KRB5_OID, authenticator)));
+    assertFalse(cache.add(krb5(KRB5_OID, authenticator)));
+  }
+
+  @Test
+  public void authenticatorIsLocated() {
+    final byte[] authenticator = authenticator(3);
+    final byte[] token = spnego(MS_KRB5_OID, MS_KRB5_OID, authenticator);
+
+    final int[] range = SpnegoReplayCache.authenticator(token);
+    final byte[] found = new byte[range[1] - range[0]];
+    System.arraycopy(token, range[0], found, 0, found.length);
+    assertArrayEquals(authenticator, found);
+  }
+
+  @Test
+  public void malformedTokenIsNotDecoded() {
+    final byte[] token = krb5(KRB5_OID, authenticator(4));
+
+    assertNull(SpnegoReplayCache.authenticator(new byte[0]));
+    assertNull(SpnegoReplayCache.authenticator(new byte[] {0x60, (byte) 0x84, 1, 2}));
+    for (int length = 0; length < token.length; length++) {
+      final byte[] truncated = new byte[length];
+      System.arraycopy(token, 0, truncated, 0, length);
+      assertNull(SpnegoReplayCache.authenticator(truncated));
+    }
+  }
+
+  @Test
+  public void fullCacheDoesNotRejectLogins() {
+    final SpnegoReplayCache cache = new SpnegoReplayCache(300, 2);
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(cache.add(krb5(KRB5_OID, authenticator(i))));
+    }
+    assertTrue(cache.size() <= 2);
+    // the last recorded token is still detected
+    assertFalse(cache.add(krb5(KRB5_OID, authenticator(9))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sizeMustBePositive() {
+    new SpnegoReplayCache(300, 0);
+  }
+
+  private static byte[] authenticator(final int seed) {
+    final byte[] cipher = new byte[200];
+    for (int i = 0; i < cipher.length; i++) {
+      cipher[i] = (byte) (seed * 31 + i);
+    }
+    return cipher;
+  }
+
+  /**
+   * Kerberos initial context token carrying an AP-REQ with the given authenticator.
+   */
+  private static byte[] krb5(final byte[] mech, final byte[] authenticator) {
+    final byte[] encrypted = der(0x30, der(0xa0, der(0x02, new byte[] {0x12})),
+        der(0xa2, der(0x04, authenticator)));
+    final byte[] apReq = der(0x6e, der(0x30, der(0xa0, der(0x02, new byte[] {0x05})),
+        der(0xa1, der(0x02, new byte[] {0x0e})), der(0xa2, der(0x03, new byte[] {0, 0, 0, 0, 0})),
+        der(0xa3, der(0x61, new byte[] {0x30, 0})), der(0xa4, encrypted)));
+    return der(0x60, der(0x06, mech), new byte[] {0x01, 0x00}, apReq);
+  }
+
+  /**
+   * SPNEGO NegTokenInit proposing the given mechanism and wrapping a Kerberos token.
+   */
+  private static byte[] spnego(final byte[] proposed, final byte[] mech,
+      final byte[] authenticator) {
+    final byte[] init = der(0x30, der(0xa0, der(0x30, der(0x06, proposed))),
+        der(0xa2, der(0x04, krb5(mech, authenticator))));
+    return der(0x60, der(0x06, SPNEGO_OID), der(0xa0, init));
+  }
+
+  private static byte[] der(final int tag, final byte[]... contents) {
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (byte[] bytes : contents) {
+      content.write(bytes, 0, bytes.length);
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(tag);
+    final int length = content.size();
+    if (length < 0x80) {
+      out.write(length);
+    } else if (length < 0x100) {
+      out.write(0x81);
+      out.write(length);
+    } else {
+      out.write(0x82);
+      out.write(length >> 8);
+      out.write(length & 0xff);
+    }
+    out.write(content.toByteArray(), 0, length);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014 Silverpeas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.silverpeas.spnego;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+public class SpnegoTimestampGuardTest {
+
+  private static final int CALLERS = 5;
+
+  @Test
+  public void callersOfSameServiceAreSpaced() throws Exception {
+    final String service = service("spaced");
+    final long[] times = new long[CALLERS];
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[CALLERS];
+    for (int i = 0; i < CALLERS; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            SpnegoTimestampGuard.await(service);
+            times[index] = System.currentTimeMillis();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    final long begin = System.currentTimeMillis();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // each caller returns once its slot is reached: the i-th one returns at
+    // least i slots after the first
+    Arrays.sort(times);
+    for (int i = 1; i < CALLERS; i++) {
+      assertTrue("caller " + i + " not spaced: " + (times[i] - begin) + " ms",
+          times[i] - begin >= i * SpnegoTimestampGuard.SPACING);
+    }
+  }
+
+  @Test
+  public void unrelatedServicesDoNotWait() {
+    final String busy = service("busy");
+    final long first = System.currentTimeMillis();
+    SpnegoTimestampGuard.await(busy);
+
+    final long begin = System.currentTimeMillis();
+    for (int i = 0; i < CALLERS; i++) {
+      SpnegoTimestampGuard.await(service("other" + i));
+    }
+    final long elapsed = System.currentTimeMillis() - begin;
+    assertTrue("unrelated services waited " + elapsed + " ms",
+        elapsed < SpnegoTimestampGuard.SPACING);
+
+    // while the busy service still spaces its callers
+    SpnegoTimestampGuard.await(busy);
+    assertTrue(System.currentTimeMillis() - first >= SpnegoTimestampGuard.SPACING);
+  }
+
+  @Test
+  public void idleServicesAreForgotten() throws Exception {
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i <= SpnegoTimestampGuard.MAX_SIZE; i++) {
+        SpnegoTimestampGuard.await(service("idle" + round + '-' + i));
+      }
+      Thread.sleep(SpnegoTimestampGuard.SPACING * 2);
+    }
+
+    // the next caller purges the services whose last slot has elapsed
+    SpnegoTimestampGuard.await(service("last"));
+    assertTrue("slots not bounded: " + SpnegoTimestampGuard.size(),
+        SpnegoTimestampGuard.size() <= SpnegoTimestampGuard.MAX_SIZE);
+  }
+
+  private static String service(final String name) {
+    return "http/" + name + '.' + System.nanoTime() + "@example.com";
+  }
+}